@@ -0,0 +1,109 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares reading a page of comments as full entities, as getPage() did before it used a
+ * projection, with the projection query getPage() runs now, on the local Datastore stub.
+ * The stub builds projections from full entities in memory and has no network hop, so it
+ * shows the client-side cost of each shape, not the smaller index-only reads a projection
+ * gets in production.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CommentPageBenchmark {
+
+  private static final int STORED_COMMENTS = 1000;
+
+  @Param({"5", "50", "500"})
+  private int rows;
+
+  private LocalServiceTestHelper helper;
+  private DatastoreService datastore;
+  private DatastoreMessageRepository repository;
+
+  @Setup
+  public void setUp() {
+    helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+    repository = new DatastoreMessageRepository(datastore,
+                                                DatastoreServiceFactory.getAsyncDatastoreService());
+    List<StoredMessage> messages = new ArrayList<StoredMessage>(STORED_COMMENTS);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < STORED_COMMENTS; i++) {
+      messages.add(new StoredMessage(0, "visitor" + (i % 50),
+                                     "Comment number " + i + " about the portfolio projects",
+                                     now - i, "en"));
+    }
+    repository.addAll(messages);
+    /* Every comment has a language, so this only records that pages may project it */
+    repository.backfillLanguages(STORED_COMMENTS + 1, null);
+  }
+
+  @TearDown
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Benchmark
+  public List<StoredMessage> fullEntities() {
+    Query query = new Query("Messages").addSort("timestampMillis", SortDirection.DESCENDING);
+    List<Entity> results =
+        datastore.prepare(query).asQueryResultList(FetchOptions.Builder.withLimit(rows));
+    List<StoredMessage> messages = new ArrayList<StoredMessage>(results.size());
+    for (Entity entity : results) {
+      messages.add(new StoredMessage(entity.getKey().getId(),
+                                     (String) entity.getProperty("username"),
+                                     (String) entity.getProperty("text"),
+                                     (long) entity.getProperty("timestampMillis"),
+                                     (String) entity.getProperty("lang")));
+    }
+    return messages;
+  }
+
+  @Benchmark
+  public List<StoredMessage> projection() {
+    return repository.getPage(rows, null).getItems();
+  }
+}
@@ -0,0 +1,156 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares posting comments from concurrent requests one put each, as CommentWriter does
+ * without write-behind, with waiting for the group commit of a CommentWriteBuffer, on the
+ * local Datastore stub. The stub answers in microseconds, so rpcLatencyMillis adds the
+ * round trip every Datastore call costs in production. Next to the comments posted per
+ * second, 'puts' counts the repository writes they took.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class CommentWriteBenchmark {
+
+  private static final int WRITE_BEHIND_CAPACITY = 1000;
+  private static final int WRITE_BEHIND_BATCH_SIZE = 50;
+  private static final long WRITE_BEHIND_MAX_BLOCK_MILLIS = 1000;
+
+  @Param({"0", "10"})
+  private long rpcLatencyMillis;
+
+  private LocalServiceTestHelper helper;
+  private ApiProxy.Environment environment;
+  private MessageRepository repository;
+  private CommentWriteBuffer buffer;
+  private final AtomicLong sequence = new AtomicLong();
+  private final AtomicLong puts = new AtomicLong();
+  private volatile long putsAtIterationStart;
+  private final AtomicBoolean putsReported = new AtomicBoolean();
+
+  @Setup
+  public void setUp() {
+    helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+    helper.setUp();
+    environment = ApiProxy.getCurrentEnvironment();
+    repository = withEnvironment(new DatastoreMessageRepository(
+        DatastoreServiceFactory.getDatastoreService(),
+        DatastoreServiceFactory.getAsyncDatastoreService()));
+    buffer = new CommentWriteBuffer(repository, stored -> {}, WRITE_BEHIND_CAPACITY,
+                                    WRITE_BEHIND_BATCH_SIZE, WRITE_BEHIND_MAX_BLOCK_MILLIS);
+  }
+
+  @Setup(Level.Iteration)
+  public void startIteration() {
+    putsAtIterationStart = puts.get();
+    putsReported.set(false);
+  }
+
+  @TearDown
+  public void tearDown() {
+    buffer.close(WRITE_BEHIND_MAX_BLOCK_MILLIS);
+    /* JMH may tear down on another thread than the one it set up on */
+    ApiProxy.setEnvironmentForCurrentThread(environment);
+    helper.tearDown();
+  }
+
+  @Benchmark
+  public List<StoredMessage> direct(Counters counters) {
+    return repository.addAll(Collections.singletonList(newMessage()));
+  }
+
+  @Benchmark
+  public void writeBehind(Counters counters) {
+    buffer.offer(newMessage()).join();
+  }
+
+  private StoredMessage newMessage() {
+    long number = sequence.incrementAndGet();
+    return new StoredMessage(0, "visitor" + (number % 50),
+                             "Comment number " + number + " about the portfolio projects",
+                             System.currentTimeMillis(), "en");
+  }
+
+  /*
+   * The stub only serves threads that carry its API environment, which the benchmark and
+   * flusher threads do not, so every call is made with it. Each call also waits out the
+   * simulated round trip.
+   */
+  private MessageRepository withEnvironment(MessageRepository target) {
+    return (MessageRepository) Proxy.newProxyInstance(
+        MessageRepository.class.getClassLoader(), new Class<?>[] {MessageRepository.class},
+        (proxy, method, args) -> {
+          ApiProxy.setEnvironmentForCurrentThread(environment);
+          if (method.getName().equals("addAll")) {
+            puts.incrementAndGet();
+          }
+          if (rpcLatencyMillis > 0) {
+            Thread.sleep(rpcLatencyMillis);
+          }
+          try {
+            return method.invoke(target, args);
+          } catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+        });
+  }
+
+  /** Reports the repository writes per second, made by all threads together. */
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Counters {
+    public long puts;
+
+    /* Every thread has a counter, and only the first to finish reports the shared total */
+    @TearDown(Level.Iteration)
+    public void stop(CommentWriteBenchmark benchmark) {
+      puts = benchmark.putsReported.compareAndSet(false, true)
+          ? benchmark.puts.get() - benchmark.putsAtIterationStart : 0;
+    }
+  }
+}
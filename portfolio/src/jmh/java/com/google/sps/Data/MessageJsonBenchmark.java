@@ -0,0 +1,93 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares writing a /data page as JSON by reflection, as the servlets did before the
+ * response types had adapters, through the shared Gson and its adapters, and streamed by
+ * MessageJson straight from the stored comments. Run with '-prof gc' added to the JMH
+ * arguments to see the bytes allocated per page next to the time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageJsonBenchmark {
+
+  @Param({"5", "50", "500"})
+  private int rows;
+
+  private List<StoredMessage> storedMessages;
+  private List<Message> messages;
+  private Gson reflectiveGson;
+  private Gson adaptedGson;
+  private ByteArrayOutputStream out;
+
+  @Setup
+  public void setUp() {
+    storedMessages = new ArrayList<StoredMessage>(rows);
+    messages = new ArrayList<Message>(rows);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < rows; i++) {
+      StoredMessage message = new StoredMessage(
+          i + 1, "visitor" + (i % 50), "Comment number " + i + " about the <b>portfolio</b>",
+          now - i, "en");
+      storedMessages.add(message);
+      messages.add(new Message(message.getUsername(), message.getText(),
+                               message.getTimestampMillis()));
+    }
+    reflectiveGson = new Gson();
+    adaptedGson = JsonServices.getGson();
+    out = new ByteArrayOutputStream(rows * 128);
+  }
+
+  @Benchmark
+  public byte[] reflection() {
+    return reflectiveGson.toJson(messages).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public byte[] adapters() {
+    return adaptedGson.toJson(messages).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public int streamed() throws IOException {
+    out.reset();
+    MessageJson.writeArray(storedMessages, out);
+    return out.size();
+  }
+}
@@ -0,0 +1,76 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a large list of texts into bounded batches for another Translator. A single
+ * batch is sent on the calling thread; several batches run in parallel on threads started
+ * for the call, which on App Engine have to belong to the calling request.
+ */
+public final class BatchTranslator implements Translator {
+
+  private final Translator delegate;
+  private final int maxBatchSize;
+  private final int maxParallelBatches;
+
+  public BatchTranslator(Translator delegate, int maxBatchSize, int maxParallelBatches) {
+    this.delegate = delegate;
+    this.maxBatchSize = maxBatchSize;
+    this.maxParallelBatches = maxParallelBatches;
+  }
+
+  @Override
+  public List<String> translate(List<String> texts, String languageCode) {
+    if (texts.size() <= maxBatchSize) {
+      return delegate.translate(texts, languageCode);
+    }
+
+    int batchCount = (texts.size() + maxBatchSize - 1) / maxBatchSize;
+    ExecutorService executor =
+        Executors.newFixedThreadPool(Math.min(batchCount, maxParallelBatches),
+                                     ServiceThreads.requestThreads("translate-batch"));
+    List<Future<List<String>>> batches = new ArrayList<Future<List<String>>>();
+    List<String> translatedTexts = new ArrayList<String>(texts.size());
+    try {
+      for (int start = 0; start < texts.size(); start += maxBatchSize) {
+        List<String> batch = texts.subList(start, Math.min(start + maxBatchSize, texts.size()));
+        batches.add(executor.submit(() -> delegate.translate(batch, languageCode)));
+      }
+
+      /* Batches are joined in submission order so results line up with texts */
+      for (Future<List<String>> batch : batches) {
+        translatedTexts.addAll(batch.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while translating", e);
+    } catch (ExecutionException e) {
+      for (Future<List<String>> batch : batches) {
+        batch.cancel(true);
+      }
+      throw new IllegalStateException("Translation batch failed", e.getCause());
+    } finally {
+      executor.shutdown();
+    }
+    return translatedTexts;
+  }
+}
@@ -0,0 +1,237 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import com.google.gson.Gson;
+
+/**
+ * Fan-out hub pushing newly posted comments to connected clients as Server-Sent Events.
+ * Comments may be posted through any instance, so while clients are connected the feed
+ * polls the page version shared in memcache every POLL_INTERVAL_MILLIS, and after it
+ * changes reads the newest comments and sends those it has not sent yet. A burst of more
+ * than POLL_PAGE_SIZE comments between two polls only sends the newest of them.
+ *
+ * Each event is serialized once and queued for every subscriber. Writes are non-blocking,
+ * and a subscriber whose bounded queue fills up because it reads too slowly is
+ * disconnected, so it can never hold more than maxQueuedEvents events in memory. Polls and
+ * heartbeats run on a background thread, and the stream needs a container that sends
+ * responses as they are written, so it is only enabled where both are available.
+ */
+public final class CommentFeed {
+
+  private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+  private static final long HEARTBEAT_INTERVAL_SECONDS = 25;
+  private static final long POLL_INTERVAL_MILLIS = 1000;
+  private static final int POLL_PAGE_SIZE = 20;
+
+  private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+  private final MessageRepository messages;
+  private final CommentPageCache pageCache;
+  private final int maxSubscribers;
+  private final int maxQueuedEvents;
+  private final Gson gson = JsonServices.getGson();
+  private final ScheduledExecutorService executor;
+
+  /* Only used by the polls, which run one at a time on the executor */
+  private boolean polled;
+  private long lastPolledVersion;
+  private long lastSentTimestampMillis;
+
+  public CommentFeed(MessageRepository messages, CommentPageCache pageCache,
+                     int maxSubscribers, int maxQueuedEvents) {
+    this.messages = messages;
+    this.pageCache = pageCache;
+    this.maxSubscribers = maxSubscribers;
+    this.maxQueuedEvents = maxQueuedEvents;
+    this.executor = Executors.newSingleThreadScheduledExecutor(
+        ServiceThreads.backgroundThreads("comment-feed"));
+    /* Heartbeats keep idle connections open through proxies and expose dead ones */
+    executor.scheduleWithFixedDelay(() -> broadcast(HEARTBEAT), HEARTBEAT_INTERVAL_SECONDS,
+                                    HEARTBEAT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    executor.scheduleWithFixedDelay(this::pollQuietly, POLL_INTERVAL_MILLIS,
+                                    POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /*
+   * Starts streaming to the client of asyncContext. Returns false, leaving the request
+   * untouched, if the feed already has maxSubscribers clients.
+   */
+  public boolean subscribe(AsyncContext asyncContext) throws IOException {
+    if (subscribers.size() >= maxSubscribers) {
+      return false;
+    }
+    Subscriber subscriber = new Subscriber(asyncContext, maxQueuedEvents);
+    subscribers.add(subscriber);
+    asyncContext.addListener(subscriber);
+    subscriber.output.setWriteListener(subscriber);
+    return true;
+  }
+
+  public int getSubscriberCount() {
+    return subscribers.size();
+  }
+
+  /*
+   * Stops polling. Connected clients are dropped when the instance shuts down.
+   */
+  public void close() {
+    executor.shutdown();
+  }
+
+  /*
+   * Sends the comments stored since the last poll. The first poll with clients connected
+   * only notes the newest comment, as the clients loaded the page it is on.
+   */
+  private void poll() {
+    if (subscribers.isEmpty()) {
+      polled = false;
+      return;
+    }
+    long version = pageCache.currentVersion();
+    if (polled && CommentPageCache.isKnownVersion(version) && (version == lastPolledVersion)) {
+      return;
+    }
+    List<StoredMessage> newest = messages.getPage(POLL_PAGE_SIZE, null).getItems();
+    /* Oldest first, so clients that add each one on top end up newest first */
+    for (int i = newest.size() - 1; i >= 0; i--) {
+      StoredMessage message = newest.get(i);
+      if (polled && (message.getTimestampMillis() > lastSentTimestampMillis)) {
+        publish(message.toMessage());
+      }
+    }
+    if (!newest.isEmpty()) {
+      lastSentTimestampMillis = Math.max(lastSentTimestampMillis,
+                                         newest.get(0).getTimestampMillis());
+    }
+    lastPolledVersion = version;
+    polled = true;
+  }
+
+  private void pollQuietly() {
+    try {
+      poll();
+    } catch (RuntimeException e) {
+      System.err.println("Comment feed poll failed, retrying on the next one: " + e);
+    }
+  }
+
+  private void publish(Message message) {
+    String event = "event: comment\ndata: " + gson.toJson(message) + "\n\n";
+    broadcast(event.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void broadcast(byte[] event) {
+    for (Subscriber subscriber : subscribers) {
+      subscriber.send(event);
+    }
+  }
+
+  /** One connected client and the events waiting to be written to it. */
+  private final class Subscriber implements WriteListener, AsyncListener {
+    private final AsyncContext asyncContext;
+    private final ServletOutputStream output;
+    private final Queue<byte[]> pending;
+    private boolean closed;
+
+    private Subscriber(AsyncContext asyncContext, int maxQueuedEvents) throws IOException {
+      this.asyncContext = asyncContext;
+      this.output = asyncContext.getResponse().getOutputStream();
+      this.pending = new ArrayBlockingQueue<byte[]>(maxQueuedEvents);
+    }
+
+    private void send(byte[] event) {
+      if (!pending.offer(event)) {
+        close();
+        return;
+      }
+      onWritePossible();
+    }
+
+    /*
+     * Writes queued events until the container reports the connection busy. The container
+     * calls this again once it can take more.
+     */
+    @Override
+    public synchronized void onWritePossible() {
+      if (closed) {
+        return;
+      }
+      try {
+        while (output.isReady()) {
+          byte[] event = pending.poll();
+          if (event == null) {
+            output.flush();
+            return;
+          }
+          output.write(event);
+        }
+      } catch (IOException | IllegalStateException e) {
+        close();
+      }
+    }
+
+    @Override
+    public void onError(Throwable error) {
+      close();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+      close();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+      close();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+      subscribers.remove(this);
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {}
+
+    private synchronized void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      subscribers.remove(this);
+      pending.clear();
+      try {
+        asyncContext.complete();
+      } catch (IllegalStateException e) {
+        /* The container already completed or timed out the request */
+      }
+    }
+  }
+}
@@ -0,0 +1,89 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inverted index over comment text. Comments are ranked by a tf-idf relevance score over
+ * the query terms and then newest first.
+ */
+public interface CommentIndex {
+
+  /* Longest term that is indexed, longer tokens are cut to this length */
+  int MAX_TERM_LENGTH = 100;
+
+  /*
+   * Indexes stored comments, which must already have their repository ids.
+   */
+  void add(List<StoredMessage> messages);
+
+  /*
+   * Drops up to limit indexed entries, resuming at cursor, null for the first call. Returns
+   * the cursor the next call resumes at, or null once every indexed comment is dropped.
+   */
+  String removeBatch(int limit, String cursor);
+
+  /*
+   * Returns up to limit comments matching any term of query, best match first.
+   */
+  List<Message> search(String query, int limit);
+
+  /*
+   * Splits text into lower-case terms and counts how often each occurs.
+   */
+  static Map<String, Integer> termFrequencies(String text) {
+    Map<String, Integer> frequencies = new HashMap<String, Integer>();
+    for (String token : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+      if (!token.isEmpty()) {
+        String term = (token.length() > MAX_TERM_LENGTH)
+            ? token.substring(0, MAX_TERM_LENGTH) : token;
+        frequencies.merge(term, 1, Integer::sum);
+      }
+    }
+    return frequencies;
+  }
+
+  /*
+   * Orders the ids of matching comments by relevance, then by timestamp, newest first.
+   * termFrequencies maps each comment id to the frequency of every query term in it, and
+   * documentFrequencies maps each query term to the number of comments containing it.
+   */
+  static List<Long> rank(Map<Long, Map<String, Integer>> termFrequencies,
+                         Map<String, Integer> documentFrequencies,
+                         Map<Long, Long> timestamps, long documentCount) {
+    Map<Long, Double> scores = new HashMap<Long, Double>();
+    for (Map.Entry<Long, Map<String, Integer>> document : termFrequencies.entrySet()) {
+      double score = 0;
+      for (Map.Entry<String, Integer> term : document.getValue().entrySet()) {
+        int documentFrequency = Math.max(1, documentFrequencies.get(term.getKey()));
+        double inverseFrequency = Math.log(1 + (double) Math.max(documentCount, documentFrequency)
+                                           / documentFrequency);
+        score += (1 + Math.log(term.getValue())) * inverseFrequency;
+      }
+      scores.put(document.getKey(), score);
+    }
+    List<Long> ranked = new ArrayList<Long>(scores.keySet());
+    Collections.sort(ranked, (first, second) -> {
+      int byScore = Double.compare(scores.get(second), scores.get(first));
+      return (byScore != 0) ? byScore : Long.compare(timestamps.get(second), timestamps.get(first));
+    });
+    return ranked;
+  }
+}
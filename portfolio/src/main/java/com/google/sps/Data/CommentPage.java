@@ -0,0 +1,41 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+/** A page of comments serialized as UTF-8 JSON, and the cursor where the next page starts. */
+public final class CommentPage {
+
+  private final byte[] json;
+  private final String endCursor;
+  private final int messageCount;
+
+  public CommentPage(byte[] json, String endCursor, int messageCount) {
+    this.json = json;
+    this.endCursor = endCursor;
+    this.messageCount = messageCount;
+  }
+
+  public byte[] getJson() {
+    return json;
+  }
+
+  public String getEndCursor() {
+    return endCursor;
+  }
+
+  public int getMessageCount() {
+    return messageCount;
+  }
+}
@@ -0,0 +1,182 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.appengine.api.memcache.MemcacheService;
+
+/**
+ * In-process cache of the first few pages of comments per language, holding the JSON body
+ * and end cursor of each page. Only pages of PAGE_SIZE comments, the size script.js asks
+ * for, are cached, so the cache holds at most maxDepth pages per language. Entries are
+ * tagged with a version number kept in memcache, which every write bumps, so a post or
+ * delete on any instance invalidates them all. Without memcache the version is kept in
+ * process, for stores that only one process serves.
+ */
+public final class CommentPageCache {
+
+  /* Start cursor sent by script.js for the newest page */
+  public static final String FIRST_PAGE_CURSOR = "none";
+
+  /* Size of the pages script.js requests, and the only one cached */
+  public static final int PAGE_SIZE = 5;
+
+  private static final String VERSION_KEY = "CommentPageCache.version";
+
+  /* Returned when memcache is unavailable; pages are never cached at this version */
+  private static final long UNKNOWN_VERSION = Long.MIN_VALUE;
+
+  private final MemcacheService memcache;
+  /* Used instead of memcache when there is none */
+  private final AtomicLong localVersion = new AtomicLong(initialVersion());
+  private final int maxDepth;
+  private final Map<String, CachedPage> pages = new HashMap<String, CachedPage>();
+
+  /* memcache may be null, which keeps the version in process */
+  public CommentPageCache(MemcacheService memcache, int maxDepth) {
+    this.memcache = memcache;
+    this.maxDepth = maxDepth;
+  }
+
+  /*
+   * Returns the cached page starting at startCursor, or null if it is missing or was not
+   * cached at version. Callers pass the currentVersion() they already read for the request,
+   * so a hit costs no memcache call.
+   */
+  public CommentPage get(String languageCode, int pageSize, String startCursor, long version) {
+    if ((pageSize != PAGE_SIZE) || !isKnownVersion(version)) {
+      return null;
+    }
+    CachedPage page;
+    synchronized (pages) {
+      page = pages.get(cacheKey(languageCode, startCursor));
+    }
+    return ((page == null) || (page.version != version)) ? null : page.page;
+  }
+
+  /*
+   * Caches a page read at version if it is within the first maxDepth pages, that is if it
+   * is the first page or follows a page that is already cached.
+   */
+  public void put(String languageCode, int pageSize, String startCursor, long version,
+                  CommentPage commentPage) {
+    synchronized (pages) {
+      int depth = depthOf(languageCode, pageSize, startCursor, version);
+      if (depth >= 0) {
+        pages.put(cacheKey(languageCode, startCursor),
+                  new CachedPage(languageCode, depth, version, commentPage));
+      }
+    }
+  }
+
+  /*
+   * Returns true if put() would cache the page starting at startCursor. Pages it would not
+   * keep can be streamed to the client instead of serialized in memory first.
+   */
+  public boolean accepts(String languageCode, int pageSize, String startCursor, long version) {
+    synchronized (pages) {
+      return depthOf(languageCode, pageSize, startCursor, version) >= 0;
+    }
+  }
+
+  /* Depth of the page starting at startCursor, or -1 if it is not to be cached */
+  private int depthOf(String languageCode, int pageSize, String startCursor, long version) {
+    if ((pageSize != PAGE_SIZE) || (version == UNKNOWN_VERSION)) {
+      return -1;
+    }
+    int depth = 0;
+    if (!startCursor.equals(FIRST_PAGE_CURSOR)) {
+      CachedPage previous = null;
+      for (CachedPage page : pages.values()) {
+        if (page.languageCode.equals(languageCode)
+            && page.page.getEndCursor().equals(startCursor) && (page.version == version)) {
+          previous = page;
+          break;
+        }
+      }
+      if (previous == null) {
+        return -1;
+      }
+      depth = previous.depth + 1;
+    }
+    return (depth < maxDepth) ? depth : -1;
+  }
+
+  /*
+   * Returns the shared version number. Read it before querying so a write that races with
+   * the query leaves the resulting page tagged with an already stale version.
+   */
+  public long currentVersion() {
+    if (memcache == null) {
+      return localVersion.get();
+    }
+    Object version = memcache.get(VERSION_KEY);
+    if (version == null) {
+      memcache.put(VERSION_KEY, initialVersion(), null,
+                   MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+      version = memcache.get(VERSION_KEY);
+    }
+    return (version == null) ? UNKNOWN_VERSION : (long) version;
+  }
+
+  /*
+   * Returns false for the version returned while memcache is unavailable, which does not
+   * identify the comments it was read with.
+   */
+  public static boolean isKnownVersion(long version) {
+    return version != UNKNOWN_VERSION;
+  }
+
+  /*
+   * Bumps the shared version and drops this instance's pages. Called after every write.
+   */
+  public void invalidate() {
+    if (memcache == null) {
+      localVersion.incrementAndGet();
+    } else {
+      memcache.increment(VERSION_KEY, 1L, initialVersion());
+    }
+    synchronized (pages) {
+      pages.clear();
+    }
+  }
+
+  /* A random start keeps a counter recreated after eviction from matching old pages */
+  private static long initialVersion() {
+    return ThreadLocalRandom.current().nextLong(0, Long.MAX_VALUE / 2);
+  }
+
+  private static String cacheKey(String languageCode, String startCursor) {
+    return languageCode + ":" + startCursor;
+  }
+
+  /** A cached page and where it sits in the list of leading pages. */
+  private static final class CachedPage {
+    private final String languageCode;
+    private final int depth;
+    private final long version;
+    private final CommentPage page;
+
+    private CachedPage(String languageCode, int depth, long version, CommentPage page) {
+      this.languageCode = languageCode;
+      this.depth = depth;
+      this.version = version;
+      this.page = page;
+    }
+  }
+}
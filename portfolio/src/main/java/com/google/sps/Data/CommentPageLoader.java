@@ -0,0 +1,90 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads pages of comments from the repository and translates them for /data, and for the
+ * prefetcher and warmup request that fill its caches ahead of time.
+ */
+public final class CommentPageLoader {
+
+  private final MessageRepository messages;
+  private final Translator translator;
+
+  public CommentPageLoader(MessageRepository messages, Translator translator) {
+    this.messages = messages;
+    this.translator = translator;
+  }
+
+  /*
+   * Loads the page of comments starting at startCursor and serializes it for caching.
+   */
+  public CommentPage loadPage(String languageCode, int pageSize, String startCursor) {
+    return serialize(translatePage(readPage(pageSize, startCursor), languageCode));
+  }
+
+  public static CommentPage serialize(RepositoryPage<StoredMessage> translated) {
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+    try {
+      MessageJson.writeArray(translated.getItems(), json);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return new CommentPage(json.toByteArray(), translated.getEndCursor(),
+                           translated.getItems().size());
+  }
+
+  public RepositoryPage<StoredMessage> readPage(int pageSize, String startCursor) {
+    //if the given cursor is 'none' the page starts at the newest comment
+    return messages.getPage(pageSize,
+        startCursor.equals(CommentPageCache.FIRST_PAGE_CURSOR) ? null : startCursor);
+  }
+
+  /*
+   * Returns page with the texts of its comments translated into languageCode.
+   */
+  public RepositoryPage<StoredMessage> translatePage(RepositoryPage<StoredMessage> page,
+                                                     String languageCode) {
+    List<StoredMessage> results = page.getItems();
+
+    /* Comments already written in the requested language are not sent to the translator,
+     * the rest of the page is translated in one call instead of one round trip per comment */
+    List<String> texts = new ArrayList<String>(results.size());
+    for (StoredMessage message : results) {
+      if (!languageCode.equals(message.getLanguageCode())) {
+        texts.add(message.getText());
+      }
+    }
+    List<String> translatedTexts = translator.translate(texts, languageCode);
+
+    List<StoredMessage> translated = new ArrayList<StoredMessage>(results.size());
+    int translatedIndex = 0;
+    for (StoredMessage message : results) {
+      String text = message.getText();
+      if (!languageCode.equals(message.getLanguageCode())) {
+        text = translatedTexts.get(translatedIndex++);
+      }
+      translated.add(new StoredMessage(message.getId(), message.getUsername(), text,
+                                       message.getTimestampMillis(), languageCode));
+    }
+    return new RepositoryPage<StoredMessage>(translated, page.getEndCursor());
+  }
+}
@@ -0,0 +1,174 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import com.google.appengine.api.taskqueue.Queue;
+
+/**
+ * Job that deletes every stored comment, then empties the search index. Ids are read in
+ * batches and deleted, with the next batch read while the previous delete is in flight.
+ * The job runs as a chain of steps of a few batches each, and saves its cursor and count
+ * in the repository after every batch, so any instance can report its progress. The index
+ * is emptied the same way, a batch at a time, in steps whose cursors start with
+ * INDEX_CURSOR_PREFIX.
+ */
+public final class CommentPurgeJob implements JobChain.Step {
+
+  public static final String JOB_NAME = "purge";
+
+  private static final int BATCH_SIZE = 500;
+  private static final int BATCHES_PER_STEP = 20;
+  /* Marks the cursor of a step that empties the index, the rest is the index's own cursor */
+  private static final String INDEX_CURSOR_PREFIX = "index:";
+
+  /* A running purge that saved no progress for this long is presumed dead and restartable */
+  private static final long STALLED_AFTER_MILLIS = 15 * 60 * 1000;
+
+  private final MessageRepository messages;
+  private final CommentPageCache pageCache;
+  private final CommentIndex index;
+  private final JobChain chain;
+
+  /*
+   * Creates the job, whose steps run as tasks on queue, or locally if queue is null.
+   */
+  public CommentPurgeJob(MessageRepository messages, CommentPageCache pageCache,
+                         CommentIndex index, Queue queue) {
+    this.messages = messages;
+    this.pageCache = pageCache;
+    this.index = index;
+    this.chain = new JobChain(JOB_NAME, this, queue);
+  }
+
+  public JobChain getChain() {
+    return chain;
+  }
+
+  /*
+   * Starts the purge unless one is already running, and returns its status.
+   */
+  public synchronized PurgeStatus start() {
+    long now = System.currentTimeMillis();
+    PurgeProgress progress = messages.getPurgeProgress();
+    if ((progress != null) && PurgeStatus.RUNNING.equals(progress.getState())
+        && (now - progress.getUpdatedAtMillis() < STALLED_AFTER_MILLIS)) {
+      return toStatus(progress, now);
+    }
+    progress = new PurgeProgress(PurgeStatus.RUNNING, null, 0, now, now);
+    messages.savePurgeProgress(progress);
+    chain.start(null);
+    return toStatus(progress, now);
+  }
+
+  /*
+   * Returns the status saved by the last purge, whichever instance ran it.
+   */
+  public PurgeStatus getStatus() {
+    PurgeProgress progress = messages.getPurgeProgress();
+    if (progress == null) {
+      return new PurgeStatus(PurgeStatus.IDLE, 0, 0, 0);
+    }
+    return toStatus(progress, System.currentTimeMillis());
+  }
+
+  @Override
+  public String run(String cursor) {
+    PurgeProgress progress = messages.getPurgeProgress();
+    long startedAtMillis =
+        (progress != null) ? progress.getStartedAtMillis() : System.currentTimeMillis();
+    long deletedCount = (progress != null) ? progress.getDeletedCount() : 0;
+    if ((cursor != null) && cursor.startsWith(INDEX_CURSOR_PREFIX)) {
+      return removeIndexBatches(cursor.substring(INDEX_CURSOR_PREFIX.length()), deletedCount,
+                                startedAtMillis);
+    }
+
+    try {
+      Future<Void> pendingDelete = null;
+      int pendingCount = 0;
+      for (int batchIndex = 0; batchIndex < BATCHES_PER_STEP; batchIndex++) {
+        RepositoryPage<Long> batch = messages.getIds(BATCH_SIZE, cursor);
+
+        if (pendingDelete != null) {
+          pendingDelete.get();
+          deletedCount += pendingCount;
+          save(PurgeStatus.RUNNING, cursor, deletedCount, startedAtMillis);
+          pageCache.invalidate();
+        }
+        if (batch.getItems().isEmpty()) {
+          /* The index is emptied from the next step on */
+          save(PurgeStatus.RUNNING, INDEX_CURSOR_PREFIX, deletedCount, startedAtMillis);
+          return INDEX_CURSOR_PREFIX;
+        }
+
+        pendingDelete = messages.deleteAll(batch.getItems());
+        pendingCount = batch.getItems().size();
+        cursor = batch.getEndCursor();
+      }
+      pendingDelete.get();
+      save(PurgeStatus.RUNNING, cursor, deletedCount + pendingCount, startedAtMillis);
+      pageCache.invalidate();
+      return cursor;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while purging comments", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Could not delete comments", e.getCause());
+    }
+  }
+
+  @Override
+  public void giveUp(RuntimeException error) {
+    System.err.println("Comment purge failed: " + error);
+    PurgeProgress progress = messages.getPurgeProgress();
+    if (progress != null) {
+      save(PurgeStatus.FAILED, progress.getCursor(), progress.getDeletedCount(),
+           progress.getStartedAtMillis());
+    }
+  }
+
+  /*
+   * Empties up to BATCHES_PER_STEP batches of the index, starting at indexCursor, empty for
+   * the first batch, and returns the cursor of the next step, or null once it is empty.
+   */
+  private String removeIndexBatches(String indexCursor, long deletedCount,
+                                    long startedAtMillis) {
+    String nextCursor = indexCursor.isEmpty() ? null : indexCursor;
+    for (int batchIndex = 0; batchIndex < BATCHES_PER_STEP; batchIndex++) {
+      nextCursor = index.removeBatch(BATCH_SIZE, nextCursor);
+      if (nextCursor == null) {
+        save(PurgeStatus.DONE, null, deletedCount, startedAtMillis);
+        return null;
+      }
+      save(PurgeStatus.RUNNING, INDEX_CURSOR_PREFIX + nextCursor, deletedCount,
+           startedAtMillis);
+    }
+    return INDEX_CURSOR_PREFIX + nextCursor;
+  }
+
+  private void save(String state, String cursor, long deletedCount, long startedAtMillis) {
+    messages.savePurgeProgress(new PurgeProgress(state, cursor, deletedCount, startedAtMillis,
+                                                 System.currentTimeMillis()));
+  }
+
+  private static PurgeStatus toStatus(PurgeProgress progress, long now) {
+    long endMillis = PurgeStatus.RUNNING.equals(progress.getState())
+        ? now : progress.getUpdatedAtMillis();
+    return new PurgeStatus(progress.getState(), progress.getDeletedCount(),
+                           progress.getStartedAtMillis(),
+                           endMillis - progress.getStartedAtMillis());
+  }
+}
@@ -0,0 +1,309 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+
+/** Holds the comment caches shared by the servlets that read and write comments. */
+public final class CommentServices {
+
+  /* Number of leading pages per language kept in the page cache */
+  private static final int CACHED_PAGES = 3;
+
+  private static final String DEFAULT_LOG_DIRECTORY = "comment-log";
+  private static final int LOG_SEGMENT_BYTES = 8 * 1024 * 1024;
+  private static final int INDEX_LOAD_BATCH_SIZE = 500;
+
+  private static final long PREFETCH_TTL_MILLIS = 30000;
+  private static final int MAX_CONCURRENT_PREFETCHES = 4;
+
+  private static final int WRITE_BEHIND_CAPACITY = 1000;
+  private static final int WRITE_BEHIND_BATCH_SIZE = 50;
+  private static final long WRITE_BEHIND_MAX_BLOCK_MILLIS = 1000;
+
+  private static final int PAGE_LOAD_THREADS = 16;
+  private static final int PAGE_LOAD_QUEUE_CAPACITY = 256;
+
+  private static final int FEED_MAX_SUBSCRIBERS = 1000;
+  private static final int FEED_MAX_QUEUED_EVENTS = 64;
+
+  private static MessageRepository messages;
+  private static CommentPageCache pageCache;
+  private static PrefetchCache prefetchCache;
+  private static CommentPurgeJob purgeJob;
+  private static CommentWriter writer;
+  private static CommentIndex index;
+  private static CommentFeed feed;
+  private static ExecutorService pageExecutor;
+  private static CommentPageLoader pageLoader;
+  private static LanguageBackfillJob languageBackfillJob;
+  private static IndexBackfillJob indexBackfillJob;
+
+  private CommentServices() {}
+
+  /*
+   * Returns the shared comment store. Setting the 'sps.storage' system property to 'embedded'
+   * keeps comments in process instead of in Datastore, so the comment path can be run and
+   * profiled without the App Engine services. Setting it to 'log' keeps them in a mapped
+   * log in the 'sps.storage.dir' directory, for self-hosted deployments of one process.
+   * Neither needs memcache or Datastore: page versions and translations are then kept in
+   * process, and so are visits and the search index.
+   */
+  public static synchronized MessageRepository getMessages() {
+    if (messages == null) {
+      String storage = System.getProperty("sps.storage", "datastore");
+      if (storage.equals("embedded")) {
+        messages = new EmbeddedMessageRepository();
+      } else if (storage.equals("log")) {
+        try {
+          messages = new MappedLogMessageRepository(
+              Paths.get(System.getProperty("sps.storage.dir", DEFAULT_LOG_DIRECTORY)),
+              LOG_SEGMENT_BYTES);
+        } catch (IOException e) {
+          throw new UncheckedIOException("Could not open the comment log", e);
+        }
+      } else {
+        messages = new DatastoreMessageRepository(
+            timedDatastore(), DatastoreServiceFactory.getAsyncDatastoreService());
+      }
+    }
+    return messages;
+  }
+
+  /*
+   * Returns the page loader. Translations go through the shared cache, so only true misses
+   * reach the API.
+   */
+  public static synchronized CommentPageLoader getPageLoader() {
+    if (pageLoader == null) {
+      pageLoader = new CommentPageLoader(getMessages(), Translators.getCache());
+    }
+    return pageLoader;
+  }
+
+  /*
+   * Returns the page cache, whose version is shared in memcache when comments are in
+   * Datastore and kept in process when they are stored outside it.
+   */
+  public static synchronized CommentPageCache getPageCache() {
+    if (pageCache == null) {
+      pageCache = new CommentPageCache(
+          usesDatastore() ? MemcacheServiceFactory.getMemcacheService() : null, CACHED_PAGES);
+    }
+    return pageCache;
+  }
+
+  /*
+   * Returns the cache of prefetched pages, which only prefetches on instances that may run
+   * background threads. That rules out App Engine's automatic scaling, which this app deploys
+   * with unless 'sps.backgroundThreads' is set on a manual or basic scaling instance.
+   */
+  public static synchronized PrefetchCache getPrefetchCache() {
+    if (prefetchCache == null) {
+      prefetchCache = new PrefetchCache(PREFETCH_TTL_MILLIS,
+                                        ServiceThreads.backgroundThreadsAllowed()
+                                            ? MAX_CONCURRENT_PREFETCHES : 0);
+    }
+    return prefetchCache;
+  }
+
+  /*
+   * Returns the executor that loads and writes /data pages that are not cached, or null on
+   * App Engine, where its threads could not call Datastore or Translate and pages are
+   * loaded on the request thread. Its queue is bounded, and requests it rejects are served
+   * on their own thread instead.
+   */
+  public static synchronized ExecutorService getPageExecutor() {
+    if ((pageExecutor == null) && !ServiceThreads.onAppEngine()) {
+      pageExecutor = new ThreadPoolExecutor(
+          PAGE_LOAD_THREADS, PAGE_LOAD_THREADS, 0, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<Runnable>(PAGE_LOAD_QUEUE_CAPACITY),
+          ServiceThreads.backgroundThreads("comment-page-load"));
+    }
+    return pageExecutor;
+  }
+
+  /*
+   * Returns the shared comment search index. Setting the 'sps.search.inMemory' system property
+   * to true, or storing comments outside Datastore, selects the in-memory stand-in instead of
+   * Datastore posting lists. Comments already stored outside Datastore are indexed first.
+   */
+  public static synchronized CommentIndex getIndex() {
+    if (index == null) {
+      if (!usesDatastore()) {
+        index = new InMemoryCommentIndex();
+        String cursor = null;
+        RepositoryPage<StoredMessage> page;
+        do {
+          page = getMessages().getPage(INDEX_LOAD_BATCH_SIZE, cursor);
+          index.add(page.getItems());
+          cursor = page.getEndCursor();
+        } while (page.getItems().size() == INDEX_LOAD_BATCH_SIZE);
+      } else if (Boolean.getBoolean("sps.search.inMemory")) {
+        index = new InMemoryCommentIndex();
+      } else {
+        index = new DatastoreCommentIndex(timedDatastore());
+      }
+    }
+    return index;
+  }
+
+  /*
+   * Returns true if /data/stream pushes new comments, which the 'sps.comments.stream' system
+   * property enables on deployments whose container streams responses and whose instances
+   * may run background threads. Otherwise clients see new comments when they reload.
+   */
+  public static boolean isStreamEnabled() {
+    return Boolean.getBoolean("sps.comments.stream") && ServiceThreads.backgroundThreadsAllowed();
+  }
+
+  /*
+   * Returns the feed behind /data/stream. Only called when isStreamEnabled() is true.
+   */
+  public static synchronized CommentFeed getFeed() {
+    if (feed == null) {
+      feed = new CommentFeed(getMessages(), getPageCache(), FEED_MAX_SUBSCRIBERS,
+                             FEED_MAX_QUEUED_EVENTS);
+    }
+    return feed;
+  }
+
+  public static synchronized CommentPurgeJob getPurgeJob() {
+    if (purgeJob == null) {
+      purgeJob = new CommentPurgeJob(getMessages(), getPageCache(), getIndex(), getJobQueue());
+    }
+    return purgeJob;
+  }
+
+  /*
+   * Returns the chained job called name, for the task handler that runs its steps, or null
+   * if there is no such job.
+   */
+  public static synchronized JobChain getJob(String name) {
+    if (CommentPurgeJob.JOB_NAME.equals(name)) {
+      return getPurgeJob().getChain();
+    }
+    if (LanguageBackfillJob.JOB_NAME.equals(name) && (getLanguageBackfillJob() != null)) {
+      return getLanguageBackfillJob().getChain();
+    }
+    if (IndexBackfillJob.JOB_NAME.equals(name) && (getIndexBackfillJob() != null)) {
+      return getIndexBackfillJob().getChain();
+    }
+    return null;
+  }
+
+  /*
+   * Starts the one-off jobs that bring comments stored by older versions up to date. Called
+   * when the instance starts; jobs that already ran do nothing.
+   */
+  public static synchronized void startMigrations() {
+    if (getLanguageBackfillJob() != null) {
+      getLanguageBackfillJob().startIfNeeded();
+    }
+    if (getIndexBackfillJob() != null) {
+      getIndexBackfillJob().startIfNeeded();
+    }
+  }
+
+  /* Only comments in Datastore were ever stored without a language */
+  private static LanguageBackfillJob getLanguageBackfillJob() {
+    if ((languageBackfillJob == null) && (getMessages() instanceof DatastoreMessageRepository)) {
+      languageBackfillJob =
+          new LanguageBackfillJob((DatastoreMessageRepository) getMessages(), getJobQueue());
+    }
+    return languageBackfillJob;
+  }
+
+  /* Only the Datastore index persists, the in-memory one is filled when it is created */
+  private static IndexBackfillJob getIndexBackfillJob() {
+    if ((indexBackfillJob == null) && (getIndex() instanceof DatastoreCommentIndex)) {
+      indexBackfillJob = new IndexBackfillJob(getMessages(), getIndex(), timedDatastore(),
+                                              getJobQueue());
+    }
+    return indexBackfillJob;
+  }
+
+  /* Chained jobs run on the task queue on App Engine, and on local threads elsewhere */
+  private static Queue getJobQueue() {
+    return ServiceThreads.onAppEngine() ? QueueFactory.getQueue(JobChain.QUEUE_NAME) : null;
+  }
+
+  /*
+   * Returns the shared comment writer. Setting the 'sps.comments.writeBehind' system property
+   * to true batches comment puts through a write-behind buffer, on instances that may run
+   * background threads.
+   */
+  public static synchronized CommentWriter getWriter() {
+    if (writer == null) {
+      writer = new CommentWriter(getMessages(), getPageCache(),
+                                 Translators.getWorker(), getIndex());
+      if (Boolean.getBoolean("sps.comments.writeBehind")) {
+        if (ServiceThreads.backgroundThreadsAllowed()) {
+          writer.enableWriteBehind(WRITE_BEHIND_CAPACITY, WRITE_BEHIND_BATCH_SIZE,
+                                   WRITE_BEHIND_MAX_BLOCK_MILLIS);
+        } else {
+          System.err.println("Write-behind needs background threads, writing comments directly");
+        }
+      }
+    }
+    return writer;
+  }
+
+  /*
+   * Shared with VisitServices, which keeps visits in process unless comments are in Datastore,
+   * and Translators, which only caches translations in Datastore alongside them.
+   */
+  static boolean usesDatastore() {
+    return System.getProperty("sps.storage", "datastore").equals("datastore");
+  }
+
+  /*
+   * Returns a Datastore client whose calls are timed in Metrics. Shared with VisitServices
+   * and Translators.
+   */
+  static DatastoreService timedDatastore() {
+    return Metrics.timed(DatastoreService.class, DatastoreServiceFactory.getDatastoreService(),
+                         "datastore");
+  }
+
+  /*
+   * Drains buffered writes. Only does anything if the writer was ever created.
+   */
+  public static synchronized void shutdown(long timeoutMillis) {
+    if (writer != null) {
+      writer.close(timeoutMillis);
+    }
+    if (prefetchCache != null) {
+      prefetchCache.close();
+    }
+    if (pageExecutor != null) {
+      pageExecutor.shutdown();
+    }
+    if (feed != null) {
+      feed.close();
+    }
+  }
+}
@@ -0,0 +1,192 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Write-behind buffer that groups comments into batched writes. Each batch takes the
+ * comments queued while the previous one was written, up to maxBatchSize, so a lone
+ * comment is written at once and a burst shares a few puts instead of one each.
+ * When the queue is full, offer() blocks briefly and then refuses the comment so the
+ * caller can write it directly. Every accepted comment comes with a future that completes
+ * once its batch is stored, or fails if the batch still cannot be written after
+ * MAX_WRITE_ATTEMPTS, so callers can wait for the group commit and report the failure.
+ * Ids are reserved before a batch is first written, so a write that is retried after a
+ * partial failure does not store any comment twice. The flusher runs on a background
+ * thread, which App Engine only allows with manual or basic scaling.
+ */
+public final class CommentWriteBuffer {
+
+  private static final int MAX_WRITE_ATTEMPTS = 3;
+  /* How often an idle flusher checks whether the buffer was closed */
+  private static final long POLL_INTERVAL_MILLIS = 100;
+  private static final long INITIAL_BACKOFF_MILLIS = 200;
+
+  private final MessageRepository messages;
+  private final Consumer<List<StoredMessage>> afterFlush;
+  private final BlockingQueue<PendingMessage> queue;
+  private final int maxBatchSize;
+  private final long maxBlockMillis;
+  private final Thread flusher;
+
+  /* Held by offer() while it queues, so once close() sets closed no comment can follow */
+  private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+  private volatile boolean closed;
+
+  public CommentWriteBuffer(MessageRepository messages,
+                            Consumer<List<StoredMessage>> afterFlush, int capacity,
+                            int maxBatchSize, long maxBlockMillis) {
+    this.messages = messages;
+    this.afterFlush = afterFlush;
+    this.queue = new ArrayBlockingQueue<PendingMessage>(capacity);
+    this.maxBatchSize = maxBatchSize;
+    this.maxBlockMillis = maxBlockMillis;
+    this.flusher = ServiceThreads.backgroundThreads("comment-write-behind")
+        .newThread(this::flushLoop);
+    this.flusher.start();
+  }
+
+  /*
+   * Queues message for the next batch and returns a future that completes when it is stored.
+   * Returns null if the buffer is closed or stayed full for maxBlockMillis, in which case
+   * the message has not been written.
+   */
+  public CompletableFuture<Void> offer(StoredMessage message) {
+    closeLock.readLock().lock();
+    try {
+      if (closed) {
+        return null;
+      }
+      PendingMessage pending = new PendingMessage(message);
+      return queue.offer(pending, maxBlockMillis, TimeUnit.MILLISECONDS) ? pending.stored : null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } finally {
+      closeLock.readLock().unlock();
+    }
+  }
+
+  /*
+   * Stops accepting comments and waits up to timeoutMillis for the queue to drain.
+   */
+  public void close(long timeoutMillis) {
+    /* The flusher wakes up at least every POLL_INTERVAL_MILLIS, so it notices this without an
+     * interrupt that could abort a put in flight */
+    markClosed();
+    try {
+      flusher.join(timeoutMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /* Waits for offers in progress, which then reach the queue before the flusher drains it */
+  private void markClosed() {
+    closeLock.writeLock().lock();
+    try {
+      closed = true;
+    } finally {
+      closeLock.writeLock().unlock();
+    }
+  }
+
+  private void flushLoop() {
+    List<PendingMessage> batch = new ArrayList<PendingMessage>(maxBatchSize);
+    while (!closed || !queue.isEmpty()) {
+      try {
+        PendingMessage first = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        markClosed();
+      }
+      /* Writers wait for their batch, so waiting for more to arrive would only delay them */
+      queue.drainTo(batch, maxBatchSize - batch.size());
+      if (!batch.isEmpty()) {
+        flush(batch);
+        batch = new ArrayList<PendingMessage>(maxBatchSize);
+      }
+    }
+  }
+
+  private void flush(List<PendingMessage> batch) {
+    List<StoredMessage> reserved = null;
+    RuntimeException lastError = null;
+    for (int attempt = 1; attempt <= MAX_WRITE_ATTEMPTS; attempt++) {
+      if (attempt > 1) {
+        try {
+          Thread.sleep(INITIAL_BACKOFF_MILLIS << (attempt - 2));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          markClosed();
+        }
+      }
+      List<StoredMessage> stored;
+      try {
+        if (reserved == null) {
+          List<StoredMessage> batchMessages = new ArrayList<StoredMessage>(batch.size());
+          for (PendingMessage pending : batch) {
+            batchMessages.add(pending.message);
+          }
+          reserved = messages.reserveIds(batchMessages);
+        }
+        stored = messages.addAll(reserved);
+      } catch (RuntimeException e) {
+        System.err.println("Batched comment write failed (attempt " + attempt + "): " + e);
+        lastError = e;
+        continue;
+      }
+      /* The comments are stored, so a failure here must not stop the flusher. It runs before
+       * the writers are released, so they see their comments in fresh pages */
+      try {
+        afterFlush.accept(stored);
+      } catch (RuntimeException e) {
+        System.err.println("Follow-up work for " + stored.size() + " comments failed: " + e);
+      }
+      for (PendingMessage pending : batch) {
+        pending.stored.complete(null);
+      }
+      return;
+    }
+    System.err.println("Could not store " + batch.size() + " comments after "
+                       + MAX_WRITE_ATTEMPTS + " attempts");
+    for (PendingMessage pending : batch) {
+      pending.stored.completeExceptionally(lastError);
+    }
+  }
+
+  /** A queued comment and the future its writer waits on. */
+  private static final class PendingMessage {
+    private final StoredMessage message;
+    private final CompletableFuture<Void> stored = new CompletableFuture<Void>();
+
+    private PendingMessage(StoredMessage message) {
+      this.message = message;
+    }
+  }
+}
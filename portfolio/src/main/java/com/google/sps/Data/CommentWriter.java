@@ -0,0 +1,95 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Stores new comments and runs the follow-up work every stored comment needs.
+ * Writes go through a write-behind buffer when one is configured, and directly to
+ * the repository otherwise or when the buffer is full. Either way write() returns once the
+ * comment is stored and throws if it could not be.
+ */
+public final class CommentWriter {
+
+  private final MessageRepository messages;
+  private final CommentPageCache pageCache;
+  private final TranslationWorker translationWorker;
+  private final CommentIndex index;
+  private CommentWriteBuffer writeBuffer;
+
+  public CommentWriter(MessageRepository messages, CommentPageCache pageCache,
+                       TranslationWorker translationWorker, CommentIndex index) {
+    this.messages = messages;
+    this.pageCache = pageCache;
+    this.translationWorker = translationWorker;
+    this.index = index;
+  }
+
+  /*
+   * Switches to write-behind mode, batching writes through a buffer with the given limits.
+   */
+  public synchronized void enableWriteBehind(int capacity, int maxBatchSize, long maxBlockMillis) {
+    if (writeBuffer == null) {
+      writeBuffer = new CommentWriteBuffer(messages, this::afterWrite, capacity, maxBatchSize,
+                                           maxBlockMillis);
+    }
+  }
+
+  public void write(StoredMessage message) {
+    CommentWriteBuffer buffer;
+    synchronized (this) {
+      buffer = writeBuffer;
+    }
+    CompletableFuture<Void> stored = (buffer != null) ? buffer.offer(message) : null;
+    if (stored != null) {
+      /* Waits for the batch, which is at most the write in flight plus its own, so the
+       * poster is only redirected once the comment is stored */
+      try {
+        stored.join();
+      } catch (CompletionException e) {
+        throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : e;
+      }
+      return;
+    }
+    afterWrite(messages.addAll(Collections.singletonList(message)));
+  }
+
+  /*
+   * Flushes any buffered comments. Called when the instance shuts down.
+   */
+  public synchronized void close(long timeoutMillis) {
+    if (writeBuffer != null) {
+      writeBuffer.close(timeoutMillis);
+      writeBuffer = null;
+    }
+  }
+
+  private void afterWrite(List<StoredMessage> storedMessages) {
+    pageCache.invalidate();
+    try {
+      index.add(storedMessages);
+    } catch (RuntimeException e) {
+      System.err.println("Could not index " + storedMessages.size() + " comments: " + e);
+    }
+    for (StoredMessage message : storedMessages) {
+      /* Warms the translation cache off the request path */
+      translationWorker.submit(message.getText(), message.getLanguageCode());
+    }
+  }
+}
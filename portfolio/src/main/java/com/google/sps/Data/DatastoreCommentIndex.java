@@ -0,0 +1,236 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * Comment index stored as one 'SearchPostings' entity per (term, comment) pair. A search
+ * runs one query per term on the composite (term, timestampMillis) index, reading the
+ * newest MAX_POSTINGS_PER_TERM postings, ranks the matching comment ids and batch-gets the
+ * top 'Messages' entities. A term in more comments than that is common enough for its
+ * relevance weight to hardly change, so its document frequency is taken as the limit.
+ *
+ * The number of indexed comments, needed for the relevance score, is spread over
+ * 'SearchStatsShards' entities so concurrent writes rarely touch the same one, and the
+ * sum is cached for DOCUMENT_COUNT_TTL_MILLIS. Only comments with no postings yet are
+ * counted, so indexing a comment again, as IndexBackfillJob does, leaves the count alone.
+ *
+ * A comment has a posting per distinct term, so the index can hold far more entities than
+ * there are comments, and removeBatch() deletes them a limited batch at a time.
+ */
+public final class DatastoreCommentIndex implements CommentIndex {
+
+  private static final String POSTING_KIND = "SearchPostings";
+  private static final String STATS_SHARD_KIND = "SearchStatsShards";
+  /* The single counter entity used before the count was sharded, still added in */
+  private static final Key LEGACY_STATS_KEY = KeyFactory.createKey("SearchStats", "documents");
+  private static final int STATS_SHARDS = 16;
+  private static final long DOCUMENT_COUNT_TTL_MILLIS = 60000;
+  private static final int MAX_QUERY_TERMS = 8;
+  private static final int MAX_POSTINGS_PER_TERM = 1000;
+  /* Datastore limit on the entities of one batch put or delete */
+  private static final int WRITE_BATCH_SIZE = 500;
+  private static final int MAX_ATTEMPTS = 5;
+
+  private final DatastoreService datastore;
+
+  private volatile long cachedDocumentCount;
+  private volatile long documentCountExpiresAtMillis;
+
+  public DatastoreCommentIndex(DatastoreService datastore) {
+    this.datastore = datastore;
+  }
+
+  @Override
+  public void add(List<StoredMessage> messages) {
+    List<Entity> postings = new ArrayList<Entity>();
+    /* The key of one posting per comment, which exists if the comment was indexed before */
+    List<Key> firstPostingKeys = new ArrayList<Key>(messages.size());
+    long newDocuments = 0;
+    for (StoredMessage message : messages) {
+      long id = message.getId();
+      Map<String, Integer> terms = CommentIndex.termFrequencies(message.getText());
+      if (terms.isEmpty()) {
+        newDocuments++;
+        continue;
+      }
+      for (Map.Entry<String, Integer> term : terms.entrySet()) {
+        Entity posting = new Entity(POSTING_KIND, term.getKey() + "|" + id);
+        posting.setProperty("term", term.getKey());
+        posting.setUnindexedProperty("messageId", id);
+        posting.setUnindexedProperty("termFrequency", (long) term.getValue());
+        posting.setProperty("timestampMillis", message.getTimestampMillis());
+        postings.add(posting);
+      }
+      firstPostingKeys.add(postings.get(postings.size() - 1).getKey());
+    }
+    newDocuments += firstPostingKeys.size() - datastore.get(firstPostingKeys).size();
+    for (int start = 0; start < postings.size(); start += WRITE_BATCH_SIZE) {
+      datastore.put(postings.subList(start, Math.min(start + WRITE_BATCH_SIZE, postings.size())));
+    }
+    if (newDocuments > 0) {
+      addToDocumentCount(newDocuments);
+    }
+  }
+
+  @Override
+  public String removeBatch(int limit, String cursor) {
+    FetchOptions fetchOptions = FetchOptions.Builder.withLimit(limit);
+    if (cursor != null) {
+      fetchOptions.startCursor(Cursor.fromWebSafeString(cursor));
+    }
+    QueryResultList<Entity> postings = datastore.prepare(new Query(POSTING_KIND).setKeysOnly())
+        .asQueryResultList(fetchOptions);
+    List<Key> keys = new ArrayList<Key>(postings.size());
+    for (Entity posting : postings) {
+      keys.add(posting.getKey());
+    }
+    for (int start = 0; start < keys.size(); start += WRITE_BATCH_SIZE) {
+      datastore.delete(keys.subList(start, Math.min(start + WRITE_BATCH_SIZE, keys.size())));
+    }
+    if (keys.size() == limit) {
+      return postings.getCursor().toWebSafeString();
+    }
+
+    /* The count is a few entities, dropped once no posting is left */
+    List<Key> statsKeys = new ArrayList<Key>(STATS_SHARDS + 1);
+    for (Entity shard : datastore.prepare(new Query(STATS_SHARD_KIND).setKeysOnly())
+             .asIterable()) {
+      statsKeys.add(shard.getKey());
+    }
+    statsKeys.add(LEGACY_STATS_KEY);
+    datastore.delete(statsKeys);
+    documentCountExpiresAtMillis = 0;
+    return null;
+  }
+
+  @Override
+  public List<Message> search(String query, int limit) {
+    Map<Long, Map<String, Integer>> termFrequencies = new HashMap<Long, Map<String, Integer>>();
+    Map<String, Integer> documentFrequencies = new HashMap<String, Integer>();
+    Map<Long, Long> timestamps = new HashMap<Long, Long>();
+
+    int queriedTerms = 0;
+    for (String term : CommentIndex.termFrequencies(query).keySet()) {
+      if (queriedTerms++ == MAX_QUERY_TERMS) {
+        break;
+      }
+      Query termQuery = new Query(POSTING_KIND)
+          .setFilter(new FilterPredicate("term", FilterOperator.EQUAL, term))
+          .addSort("timestampMillis", SortDirection.DESCENDING);
+      int documentFrequency = 0;
+      for (Entity posting : datastore.prepare(termQuery)
+               .asIterable(FetchOptions.Builder.withLimit(MAX_POSTINGS_PER_TERM))) {
+        long id = (long) posting.getProperty("messageId");
+        termFrequencies.computeIfAbsent(id, key -> new HashMap<String, Integer>())
+            .put(term, (int) (long) posting.getProperty("termFrequency"));
+        timestamps.put(id, (long) posting.getProperty("timestampMillis"));
+        documentFrequency++;
+      }
+      documentFrequencies.put(term, documentFrequency);
+    }
+
+    List<Long> ranked = CommentIndex.rank(termFrequencies, documentFrequencies, timestamps,
+                                          getDocumentCount());
+    List<Key> keys = new ArrayList<Key>(Math.min(limit, ranked.size()));
+    for (Long id : ranked.subList(0, Math.min(limit, ranked.size()))) {
+      keys.add(KeyFactory.createKey("Messages", id));
+    }
+    Map<Key, Entity> messageEntities = datastore.get(keys);
+
+    /* Comments deleted since they were indexed are skipped */
+    List<Message> results = new ArrayList<Message>(keys.size());
+    for (Key key : keys) {
+      Entity entity = messageEntities.get(key);
+      if (entity != null) {
+        results.add(new Message((String) entity.getProperty("username"),
+                                (String) entity.getProperty("text"),
+                                (long) entity.getProperty("timestampMillis")));
+      }
+    }
+    return results;
+  }
+
+  /*
+   * Returns the number of indexed comments, summed over the shards at most
+   * DOCUMENT_COUNT_TTL_MILLIS ago.
+   */
+  private long getDocumentCount() {
+    long now = System.currentTimeMillis();
+    if (now < documentCountExpiresAtMillis) {
+      return cachedDocumentCount;
+    }
+    long count = 0;
+    for (Entity shard : datastore.prepare(new Query(STATS_SHARD_KIND)).asIterable()) {
+      count += (long) shard.getProperty("count");
+    }
+    try {
+      count += (long) datastore.get(LEGACY_STATS_KEY).getProperty("count");
+    } catch (EntityNotFoundException e) {
+      /* Nothing was counted before the count was sharded */
+    }
+    cachedDocumentCount = count;
+    documentCountExpiresAtMillis = now + DOCUMENT_COUNT_TTL_MILLIS;
+    return count;
+  }
+
+  /* Adds delta to a random shard of the count, in a transaction */
+  private void addToDocumentCount(long delta) {
+    for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+      int shard = ThreadLocalRandom.current().nextInt(STATS_SHARDS);
+      Key shardKey = KeyFactory.createKey(STATS_SHARD_KIND, "documents-" + shard);
+      Transaction transaction = datastore.beginTransaction();
+      try {
+        Entity stats;
+        try {
+          stats = datastore.get(transaction, shardKey);
+        } catch (EntityNotFoundException e) {
+          stats = new Entity(shardKey);
+          stats.setUnindexedProperty("count", 0L);
+        }
+        stats.setUnindexedProperty("count", (long) stats.getProperty("count") + delta);
+        datastore.put(transaction, stats);
+        transaction.commit();
+        return;
+      } catch (ConcurrentModificationException e) {
+        /* Another comment was counted on the same shard, retry on another one */
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+    System.err.println("Could not update indexed comment count");
+  }
+}
@@ -0,0 +1,228 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultList;
+
+/**
+ * Comments stored as 'Messages' entities. Pages are projection queries on the composite
+ * indexes declared in datastore-indexes.xml, and cursors are Datastore web-safe cursors.
+ * Purge progress is kept in a 'CommentPurges' entity.
+ *
+ * A projection skips entities that lack a projected property, so pages only project 'lang'
+ * once backfillLanguages() has given it to every comment stored before it was always set,
+ * and recorded that in a 'CommentMigrations' entity.
+ */
+public final class DatastoreMessageRepository implements MessageRepository {
+
+  private static final String KIND = "Messages";
+  private static final Key PURGE_PROGRESS_KEY = KeyFactory.createKey("CommentPurges", "current");
+  private static final Key LANGUAGES_MIGRATION_KEY =
+      KeyFactory.createKey("CommentMigrations", "languages");
+
+  /* Stored as 'lang' when detection failed, the BCP 47 code for an undetermined language */
+  private static final String UNKNOWN_LANGUAGE = "und";
+  private static final long MIGRATION_CHECK_INTERVAL_MILLIS = 60000;
+
+  private final DatastoreService datastore;
+  private final AsyncDatastoreService asyncDatastore;
+
+  private volatile boolean languagesBackfilled;
+  private volatile long nextMigrationCheckMillis;
+
+  public DatastoreMessageRepository(DatastoreService datastore,
+                                    AsyncDatastoreService asyncDatastore) {
+    this.datastore = datastore;
+    this.asyncDatastore = asyncDatastore;
+  }
+
+  @Override
+  public List<StoredMessage> addAll(List<StoredMessage> messages) {
+    List<Entity> entities = new ArrayList<Entity>(messages.size());
+    for (StoredMessage message : messages) {
+      Entity messageEntity = (message.getId() != 0)
+          ? new Entity(KIND, message.getId()) : new Entity(KIND);
+      messageEntity.setProperty("text", message.getText());
+      messageEntity.setProperty("username", message.getUsername());
+      messageEntity.setProperty("timestampMillis", message.getTimestampMillis());
+      messageEntity.setProperty("lang", (message.getLanguageCode() != null)
+                                        ? message.getLanguageCode() : UNKNOWN_LANGUAGE);
+      entities.add(messageEntity);
+    }
+    List<Key> keys = datastore.put(entities);
+    List<StoredMessage> stored = new ArrayList<StoredMessage>(messages.size());
+    for (int i = 0; i < messages.size(); i++) {
+      stored.add(messages.get(i).withId(keys.get(i).getId()));
+    }
+    return stored;
+  }
+
+  @Override
+  public List<StoredMessage> reserveIds(List<StoredMessage> messages) {
+    List<StoredMessage> reserved = new ArrayList<StoredMessage>(messages.size());
+    if (messages.isEmpty()) {
+      return reserved;
+    }
+    Iterator<Key> keys = datastore.allocateIds(KIND, messages.size()).iterator();
+    for (StoredMessage message : messages) {
+      reserved.add(message.withId(keys.next().getId()));
+    }
+    return reserved;
+  }
+
+  @Override
+  public RepositoryPage<StoredMessage> getPage(int pageSize, String startCursor) {
+    /* Only the displayed properties are read, served from the composite index rather than
+     * by fetching every full entity */
+    Query query = new Query(KIND).addSort("timestampMillis", SortDirection.DESCENDING);
+    query.addProjection(new PropertyProjection("username", String.class));
+    query.addProjection(new PropertyProjection("text", String.class));
+    query.addProjection(new PropertyProjection("timestampMillis", Long.class));
+    if (languagesBackfilled()) {
+      query.addProjection(new PropertyProjection("lang", String.class));
+    }
+    QueryResultList<Entity> results =
+        datastore.prepare(query).asQueryResultList(fetchOptions(pageSize, startCursor));
+
+    List<StoredMessage> messages = new ArrayList<StoredMessage>(results.size());
+    for (Entity entity : results) {
+      String languageCode = (String) entity.getProperty("lang");
+      messages.add(new StoredMessage(entity.getKey().getId(),
+                                     (String) entity.getProperty("username"),
+                                     (String) entity.getProperty("text"),
+                                     (long) entity.getProperty("timestampMillis"),
+                                     UNKNOWN_LANGUAGE.equals(languageCode) ? null : languageCode));
+    }
+    return new RepositoryPage<StoredMessage>(messages, results.getCursor().toWebSafeString());
+  }
+
+  @Override
+  public RepositoryPage<Long> getIds(int limit, String startCursor) {
+    Query query = new Query(KIND).setKeysOnly();
+    QueryResultList<Entity> results =
+        datastore.prepare(query).asQueryResultList(fetchOptions(limit, startCursor));
+    List<Long> ids = new ArrayList<Long>(results.size());
+    for (Entity entity : results) {
+      ids.add(entity.getKey().getId());
+    }
+    return new RepositoryPage<Long>(ids, results.getCursor().toWebSafeString());
+  }
+
+  @Override
+  public Future<Void> deleteAll(List<Long> ids) {
+    List<Key> keys = new ArrayList<Key>(ids.size());
+    for (Long id : ids) {
+      keys.add(KeyFactory.createKey(KIND, id));
+    }
+    return asyncDatastore.delete(keys);
+  }
+
+  @Override
+  public PurgeProgress getPurgeProgress() {
+    try {
+      Entity progress = datastore.get(PURGE_PROGRESS_KEY);
+      long startedAtMillis = (long) progress.getProperty("startedAtMillis");
+      /* Progress saved before updatedAtMillis existed counts as updated when it started */
+      Object updatedAtMillis = progress.getProperty("updatedAtMillis");
+      return new PurgeProgress((String) progress.getProperty("state"),
+                               (String) progress.getProperty("cursor"),
+                               (long) progress.getProperty("deletedCount"), startedAtMillis,
+                               (updatedAtMillis == null) ? startedAtMillis
+                                                         : (long) updatedAtMillis);
+    } catch (EntityNotFoundException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public void savePurgeProgress(PurgeProgress progress) {
+    Entity entity = new Entity(PURGE_PROGRESS_KEY);
+    entity.setUnindexedProperty("state", progress.getState());
+    entity.setUnindexedProperty("deletedCount", progress.getDeletedCount());
+    entity.setUnindexedProperty("startedAtMillis", progress.getStartedAtMillis());
+    entity.setUnindexedProperty("updatedAtMillis", progress.getUpdatedAtMillis());
+    if (progress.getCursor() != null) {
+      entity.setUnindexedProperty("cursor", progress.getCursor());
+    }
+    /* Waited on, so a purge step never reports progress that was not saved */
+    datastore.put(entity);
+  }
+
+  /*
+   * Gives up to limit comments starting at cursor a 'lang' property if they have none, and
+   * returns the cursor to continue from. Returns null, after recording that every comment
+   * has one, once it reaches the end.
+   */
+  public String backfillLanguages(int limit, String cursor) {
+    QueryResultList<Entity> results =
+        datastore.prepare(new Query(KIND)).asQueryResultList(fetchOptions(limit, cursor));
+    List<Entity> updated = new ArrayList<Entity>();
+    for (Entity entity : results) {
+      if (!entity.hasProperty("lang")) {
+        entity.setProperty("lang", UNKNOWN_LANGUAGE);
+        updated.add(entity);
+      }
+    }
+    datastore.put(updated);
+    if (results.size() < limit) {
+      Entity migration = new Entity(LANGUAGES_MIGRATION_KEY);
+      migration.setUnindexedProperty("doneAtMillis", System.currentTimeMillis());
+      datastore.put(migration);
+      languagesBackfilled = true;
+      return null;
+    }
+    return results.getCursor().toWebSafeString();
+  }
+
+  /*
+   * Returns true once the language backfill has finished. Until then the migration entity
+   * is looked up at most once a minute.
+   */
+  public boolean languagesBackfilled() {
+    if (languagesBackfilled || (System.currentTimeMillis() < nextMigrationCheckMillis)) {
+      return languagesBackfilled;
+    }
+    try {
+      datastore.get(LANGUAGES_MIGRATION_KEY);
+      languagesBackfilled = true;
+    } catch (EntityNotFoundException e) {
+      nextMigrationCheckMillis = System.currentTimeMillis() + MIGRATION_CHECK_INTERVAL_MILLIS;
+    }
+    return languagesBackfilled;
+  }
+
+  private static FetchOptions fetchOptions(int limit, String startCursor) {
+    FetchOptions fetchOptions = FetchOptions.Builder.withLimit(limit);
+    if (startCursor != null) {
+      fetchOptions.startCursor(Cursor.fromWebSafeString(startCursor));
+    }
+    return fetchOptions;
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.List;
+import com.google.appengine.api.datastore.DatastoreService;
+
+/**
+ * Visit statistics in Datastore: the sharded weekday counter, the unique visitor sketches
+ * and the bucketed time series, each in its own kinds.
+ */
+public final class DatastoreVisitRepository implements VisitRepository {
+
+  private final ShardedVisitCounter counter;
+  private final UniqueVisitorCounter uniqueVisitorCounter;
+  private final VisitTimeSeries timeSeries;
+
+  public DatastoreVisitRepository(DatastoreService datastore) {
+    this.counter = new ShardedVisitCounter(datastore);
+    this.uniqueVisitorCounter = new UniqueVisitorCounter(datastore);
+    this.timeSeries = new VisitTimeSeries(datastore);
+  }
+
+  @Override
+  public void addVisits(int dayIndex, long delta) {
+    counter.increment(dayIndex, delta);
+  }
+
+  @Override
+  public long[] getWeekdayTotals() {
+    return counter.getTotals();
+  }
+
+  @Override
+  public void mergeVisitors(int dayIndex, HyperLogLog sketch) {
+    uniqueVisitorCounter.merge(dayIndex, sketch);
+  }
+
+  @Override
+  public long[] getUniqueVisitors() {
+    return uniqueVisitorCounter.getUniqueVisitors();
+  }
+
+  @Override
+  public void addMinuteVisits(long epochMinute, long visits) {
+    timeSeries.addVisits(epochMinute, visits);
+  }
+
+  @Override
+  public void rollUp(long nowMillis) {
+    timeSeries.rollUp(nowMillis);
+  }
+
+  @Override
+  public List<VisitBucket> getRange(long fromMillis, long toMillis,
+                                    VisitTimeSeries.Granularity granularity) {
+    return timeSeries.getRange(fromMillis, toMillis, granularity);
+  }
+}
@@ -0,0 +1,128 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process comment store for running and profiling the comment path without the App
+ * Engine stack. Comments are kept in a concurrent skip list sorted by timestampMillis and
+ * then id, newest first, and a cursor is the position of the last comment returned, so
+ * pages stay stable while comments are added in front of them. Nothing survives a restart.
+ */
+public final class EmbeddedMessageRepository implements MessageRepository {
+
+  private static final Comparator<StoredMessage> NEWEST_FIRST =
+      Comparator.comparingLong(StoredMessage::getTimestampMillis)
+          .thenComparingLong(StoredMessage::getId).reversed();
+
+  private final NavigableSet<StoredMessage> messages =
+      new ConcurrentSkipListSet<StoredMessage>(NEWEST_FIRST);
+  private final AtomicLong nextId = new AtomicLong(1);
+
+  private volatile PurgeProgress purgeProgress;
+
+  @Override
+  public List<StoredMessage> addAll(List<StoredMessage> newMessages) {
+    List<StoredMessage> stored = new ArrayList<StoredMessage>(newMessages.size());
+    for (StoredMessage message : newMessages) {
+      StoredMessage storedMessage = (message.getId() != 0)
+          ? message : message.withId(nextId.getAndIncrement());
+      /* The set already holds a comment stored again under its reserved id */
+      messages.add(storedMessage);
+      stored.add(storedMessage);
+    }
+    return stored;
+  }
+
+  @Override
+  public List<StoredMessage> reserveIds(List<StoredMessage> newMessages) {
+    long firstId = nextId.getAndAdd(newMessages.size());
+    List<StoredMessage> reserved = new ArrayList<StoredMessage>(newMessages.size());
+    for (int i = 0; i < newMessages.size(); i++) {
+      reserved.add(newMessages.get(i).withId(firstId + i));
+    }
+    return reserved;
+  }
+
+  @Override
+  public RepositoryPage<StoredMessage> getPage(int pageSize, String startCursor) {
+    List<StoredMessage> page = new ArrayList<StoredMessage>(pageSize);
+    StoredMessage last = decodeCursor(startCursor);
+    Iterator<StoredMessage> iterator = (last == null)
+        ? messages.iterator() : messages.tailSet(last, false).iterator();
+    while ((page.size() < pageSize) && iterator.hasNext()) {
+      StoredMessage message = iterator.next();
+      page.add(message);
+      last = message;
+    }
+    return new RepositoryPage<StoredMessage>(page, encodeCursor(last));
+  }
+
+  @Override
+  public RepositoryPage<Long> getIds(int limit, String startCursor) {
+    RepositoryPage<StoredMessage> page = getPage(limit, startCursor);
+    List<Long> ids = new ArrayList<Long>(page.getItems().size());
+    for (StoredMessage message : page.getItems()) {
+      ids.add(message.getId());
+    }
+    return new RepositoryPage<Long>(ids, page.getEndCursor());
+  }
+
+  @Override
+  public Future<Void> deleteAll(List<Long> ids) {
+    Set<Long> deleted = new HashSet<Long>(ids);
+    messages.removeIf(message -> deleted.contains(message.getId()));
+    return CompletableFuture.completedFuture(null);
+  }
+
+  @Override
+  public PurgeProgress getPurgeProgress() {
+    return purgeProgress;
+  }
+
+  @Override
+  public void savePurgeProgress(PurgeProgress progress) {
+    purgeProgress = progress;
+  }
+
+  /* Cursors look like '1591029384000:42', the timestamp and id of the last comment read */
+  private static String encodeCursor(StoredMessage last) {
+    return (last == null) ? "" : last.getTimestampMillis() + ":" + last.getId();
+  }
+
+  private static StoredMessage decodeCursor(String cursor) {
+    if ((cursor == null) || cursor.isEmpty()) {
+      return null;
+    }
+    int separator = cursor.indexOf(':');
+    if (separator < 0) {
+      throw new IllegalArgumentException("Malformed cursor: " + cursor);
+    }
+    long timestampMillis = Long.parseLong(cursor.substring(0, separator));
+    long id = Long.parseLong(cursor.substring(separator + 1));
+    return new StoredMessage(id, null, null, timestampMillis, null);
+  }
+}
@@ -0,0 +1,102 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process visit statistics for running the visit path without the App Engine stack.
+ * Only minute buckets are stored; hour and day buckets are summed from them when read, so
+ * rollUp() has nothing to do. Nothing survives a restart.
+ */
+public final class EmbeddedVisitRepository implements VisitRepository {
+
+  private static final long MINUTE_MILLIS = VisitTimeSeries.Granularity.MINUTE.getMillis();
+
+  private final AtomicLongArray totals = new AtomicLongArray(ShardedVisitCounter.DAYS);
+  private final HyperLogLog[] visitors = new HyperLogLog[ShardedVisitCounter.DAYS];
+  private final Map<Long, Long> minuteVisits = new ConcurrentHashMap<Long, Long>();
+
+  public EmbeddedVisitRepository() {
+    for (int day = 0; day < visitors.length; day++) {
+      visitors[day] = new HyperLogLog();
+    }
+  }
+
+  @Override
+  public void addVisits(int dayIndex, long delta) {
+    totals.addAndGet(dayIndex, delta);
+  }
+
+  @Override
+  public long[] getWeekdayTotals() {
+    long[] weekdayTotals = new long[ShardedVisitCounter.DAYS];
+    for (int day = 0; day < weekdayTotals.length; day++) {
+      weekdayTotals[day] = totals.get(day);
+    }
+    return weekdayTotals;
+  }
+
+  @Override
+  public void mergeVisitors(int dayIndex, HyperLogLog sketch) {
+    synchronized (visitors) {
+      visitors[dayIndex].merge(sketch);
+    }
+  }
+
+  @Override
+  public long[] getUniqueVisitors() {
+    long[] uniqueVisitors = new long[ShardedVisitCounter.DAYS];
+    synchronized (visitors) {
+      for (int day = 0; day < uniqueVisitors.length; day++) {
+        uniqueVisitors[day] = visitors[day].estimate();
+      }
+    }
+    return uniqueVisitors;
+  }
+
+  @Override
+  public void addMinuteVisits(long epochMinute, long visits) {
+    minuteVisits.merge(epochMinute, visits, Long::sum);
+  }
+
+  @Override
+  public void rollUp(long nowMillis) {
+    /* Coarser buckets are computed on read */
+  }
+
+  @Override
+  public List<VisitBucket> getRange(long fromMillis, long toMillis,
+                                    VisitTimeSeries.Granularity granularity) {
+    long first = fromMillis / granularity.getMillis();
+    long last = (toMillis - 1) / granularity.getMillis();
+    long[] visits = new long[(int) (last - first + 1)];
+    for (Map.Entry<Long, Long> minute : minuteVisits.entrySet()) {
+      long bucket = minute.getKey() * MINUTE_MILLIS / granularity.getMillis();
+      if ((bucket >= first) && (bucket <= last)) {
+        visits[(int) (bucket - first)] += minute.getValue();
+      }
+    }
+    List<VisitBucket> buckets = new ArrayList<VisitBucket>(visits.length);
+    for (int i = 0; i < visits.length; i++) {
+      buckets.add(new VisitBucket((first + i) * granularity.getMillis(), visits[i]));
+    }
+    return buckets;
+  }
+}
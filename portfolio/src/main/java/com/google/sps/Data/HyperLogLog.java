@@ -0,0 +1,114 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HyperLogLog sketch estimating the number of distinct strings added to it. Uses 2^12
+ * one-byte registers, so a sketch is a fixed 4 KB with a standard error of about 1.6%.
+ * Sketches merge by taking the register-wise maximum, so counts from several instances
+ * can be combined without double counting.
+ */
+public final class HyperLogLog {
+
+  private static final int PRECISION = 12;
+  private static final int REGISTERS = 1 << PRECISION;
+  private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+  private final byte[] registers;
+
+  public HyperLogLog() {
+    this(new byte[REGISTERS]);
+  }
+
+  private HyperLogLog(byte[] registers) {
+    this.registers = registers;
+  }
+
+  /*
+   * Restores a sketch serialized with toBytes().
+   */
+  public static HyperLogLog fromBytes(byte[] bytes) {
+    if (bytes.length != REGISTERS) {
+      throw new IllegalArgumentException("Expected " + REGISTERS + " registers, got "
+                                         + bytes.length);
+    }
+    return new HyperLogLog(bytes.clone());
+  }
+
+  public byte[] toBytes() {
+    return registers.clone();
+  }
+
+  public void add(String value) {
+    long hash = hash(value.getBytes(StandardCharsets.UTF_8));
+    int register = (int) (hash >>> (64 - PRECISION));
+    /* Rank of the first set bit in the remaining bits; the sentinel bit caps it */
+    int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+    if (rank > registers[register]) {
+      registers[register] = (byte) rank;
+    }
+  }
+
+  public void merge(HyperLogLog other) {
+    for (int i = 0; i < REGISTERS; i++) {
+      if (other.registers[i] > registers[i]) {
+        registers[i] = other.registers[i];
+      }
+    }
+  }
+
+  public boolean isEmpty() {
+    for (byte register : registers) {
+      if (register != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public long estimate() {
+    double sum = 0;
+    int zeroRegisters = 0;
+    for (byte register : registers) {
+      sum += 1.0 / (1L << register);
+      if (register == 0) {
+        zeroRegisters++;
+      }
+    }
+    double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+    /* Linear counting is more accurate while many registers are still empty */
+    if ((estimate <= 2.5 * REGISTERS) && (zeroRegisters > 0)) {
+      estimate = REGISTERS * Math.log((double) REGISTERS / zeroRegisters);
+    }
+    return Math.round(estimate);
+  }
+
+  /* 64-bit FNV-1a followed by the MurmurHash3 finalizer to spread the bits */
+  private static long hash(byte[] bytes) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : bytes) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,81 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Local stand-in for the Datastore comment index, holding posting lists in memory. It only
+ * knows about comments added since the instance started.
+ */
+public final class InMemoryCommentIndex implements CommentIndex {
+
+  /* Term -> comment id -> occurrences of the term in that comment */
+  private final Map<String, Map<Long, Integer>> postings =
+      new HashMap<String, Map<Long, Integer>>();
+  private final Map<Long, Message> messages = new HashMap<Long, Message>();
+  private final Map<Long, Long> timestamps = new HashMap<Long, Long>();
+
+  @Override
+  public synchronized void add(List<StoredMessage> storedMessages) {
+    for (StoredMessage message : storedMessages) {
+      long id = message.getId();
+      messages.put(id, message.toMessage());
+      timestamps.put(id, message.getTimestampMillis());
+      Map<String, Integer> terms = CommentIndex.termFrequencies(message.getText());
+      for (Map.Entry<String, Integer> term : terms.entrySet()) {
+        postings.computeIfAbsent(term.getKey(), key -> new HashMap<Long, Integer>())
+            .put(id, term.getValue());
+      }
+    }
+  }
+
+  @Override
+  public synchronized String removeBatch(int limit, String cursor) {
+    /* Clearing the maps costs nothing like a Datastore delete, so it is done at once */
+    postings.clear();
+    messages.clear();
+    timestamps.clear();
+    return null;
+  }
+
+  @Override
+  public synchronized List<Message> search(String query, int limit) {
+    Map<Long, Map<String, Integer>> termFrequencies = new HashMap<Long, Map<String, Integer>>();
+    Map<String, Integer> documentFrequencies = new HashMap<String, Integer>();
+    for (String term : CommentIndex.termFrequencies(query).keySet()) {
+      Map<Long, Integer> posting = postings.get(term);
+      if (posting == null) {
+        continue;
+      }
+      documentFrequencies.put(term, posting.size());
+      for (Map.Entry<Long, Integer> document : posting.entrySet()) {
+        termFrequencies.computeIfAbsent(document.getKey(), key -> new HashMap<String, Integer>())
+            .put(term, document.getValue());
+      }
+    }
+
+    List<Long> ranked = CommentIndex.rank(termFrequencies, documentFrequencies, timestamps,
+                                          messages.size());
+    List<Message> results = new ArrayList<Message>(Math.min(limit, ranked.size()));
+    for (Long id : ranked.subList(0, Math.min(limit, ranked.size()))) {
+      results.add(messages.get(id));
+    }
+    return results;
+  }
+}
@@ -0,0 +1,89 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.taskqueue.Queue;
+
+/**
+ * One-off job adding every stored comment to the Datastore search index, for the comments
+ * posted before there was one and the postings written before their timestamps were
+ * indexed. Indexing a comment again only rewrites its postings. A 'CommentMigrations'
+ * entity records that the job finished.
+ */
+public final class IndexBackfillJob implements JobChain.Step {
+
+  public static final String JOB_NAME = "search-index";
+
+  private static final Key DONE_KEY = KeyFactory.createKey("CommentMigrations", JOB_NAME);
+  /* Task name suffix shared by every instance, so only one of them starts the job */
+  private static final String RUN_ID = "1";
+  private static final int BATCH_SIZE = 500;
+  private static final int BATCHES_PER_STEP = 20;
+
+  private final MessageRepository messages;
+  private final CommentIndex index;
+  private final DatastoreService datastore;
+  private final JobChain chain;
+
+  public IndexBackfillJob(MessageRepository messages, CommentIndex index,
+                          DatastoreService datastore, Queue queue) {
+    this.messages = messages;
+    this.index = index;
+    this.datastore = datastore;
+    this.chain = new JobChain(JOB_NAME, this, queue);
+  }
+
+  public JobChain getChain() {
+    return chain;
+  }
+
+  /*
+   * Starts the backfill unless it already finished.
+   */
+  public void startIfNeeded() {
+    try {
+      datastore.get(DONE_KEY);
+    } catch (EntityNotFoundException e) {
+      chain.startOnce(RUN_ID);
+    }
+  }
+
+  @Override
+  public String run(String cursor) {
+    for (int batch = 0; batch < BATCHES_PER_STEP; batch++) {
+      RepositoryPage<StoredMessage> page = messages.getPage(BATCH_SIZE, cursor);
+      index.add(page.getItems());
+      if (page.getItems().size() < BATCH_SIZE) {
+        Entity done = new Entity(DONE_KEY);
+        done.setUnindexedProperty("doneAtMillis", System.currentTimeMillis());
+        datastore.put(done);
+        return null;
+      }
+      cursor = page.getEndCursor();
+    }
+    return cursor;
+  }
+
+  @Override
+  public void giveUp(RuntimeException error) {
+    System.err.println("Search index backfill failed, older comments may not be found: "
+                       + error);
+  }
+}
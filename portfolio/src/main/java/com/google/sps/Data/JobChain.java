@@ -0,0 +1,160 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+/**
+ * Runs a long job as a chain of short steps, each resuming from the cursor the step before
+ * it stopped at. On App Engine every step is a push task on the 'jobs' queue carrying its
+ * cursor, so the job outlives the instance that started it and a failed step is retried by
+ * the queue. Elsewhere the steps run one after another on a local thread.
+ */
+public final class JobChain {
+
+  public static final String QUEUE_NAME = "jobs";
+  public static final String TASK_URL = "/tasks/job";
+
+  /* The first attempt plus the task-retry-limit of the 'jobs' queue in queue.xml */
+  public static final int MAX_STEP_ATTEMPTS = 5;
+  private static final long INITIAL_BACKOFF_MILLIS = 1000;
+
+  /** The work of a job, done a bounded piece at a time. */
+  public interface Step {
+
+    /*
+     * Does the part of the job that starts at cursor, null for the first step, and returns
+     * the cursor the next step starts at, or null once the job is done.
+     */
+    String run(String cursor);
+
+    /* Called when a step has failed MAX_STEP_ATTEMPTS times, which ends the job */
+    void giveUp(RuntimeException error);
+  }
+
+  private final String name;
+  private final Step step;
+  private final Queue queue;
+  private final ExecutorService executor;
+
+  /*
+   * Creates a chain that enqueues its steps on queue, or runs them on a local thread if
+   * queue is null. Task names only allow letters, digits, '-' and '_', and so does name.
+   */
+  public JobChain(String name, Step step, Queue queue) {
+    this.name = name;
+    this.step = step;
+    this.queue = queue;
+    this.executor = (queue != null) ? null : Executors.newSingleThreadExecutor(
+        ServiceThreads.backgroundThreads("job-" + name));
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /*
+   * Starts the job at cursor, null for the beginning.
+   */
+  public void start(String cursor) {
+    if (queue != null) {
+      enqueue(Long.toString(System.currentTimeMillis()), 0, cursor);
+    } else {
+      executor.execute(() -> runLocally(cursor));
+    }
+  }
+
+  /*
+   * Starts the job from the beginning, unless a run called runId was already started on
+   * App Engine. Used for one-off jobs that every new instance may try to start.
+   */
+  public void startOnce(String runId) {
+    if (queue != null) {
+      enqueue(runId, 0, null);
+    } else {
+      executor.execute(() -> runLocally(null));
+    }
+  }
+
+  /*
+   * Runs one step for the task handler and enqueues the next one. A failure is rethrown
+   * so the queue retries the step, unless this was its last attempt.
+   */
+  public void runTask(String runId, int stepIndex, String cursor, int retryCount) {
+    String nextCursor;
+    try {
+      nextCursor = step.run(cursor);
+    } catch (RuntimeException e) {
+      if (retryCount + 1 >= MAX_STEP_ATTEMPTS) {
+        step.giveUp(e);
+        return;
+      }
+      throw e;
+    }
+    if (nextCursor != null) {
+      enqueue(runId, stepIndex + 1, nextCursor);
+    }
+  }
+
+  /*
+   * Step tasks are named after the run and their position in it, so a step that is
+   * retried after enqueueing its successor cannot start a second copy of the chain.
+   */
+  private void enqueue(String runId, int stepIndex, String cursor) {
+    TaskOptions task = TaskOptions.Builder.withUrl(TASK_URL)
+        .taskName(name + "-" + runId + "-" + stepIndex)
+        .param("job", name)
+        .param("run", runId)
+        .param("step", Integer.toString(stepIndex));
+    if (cursor != null) {
+      task.param("cursor", cursor);
+    }
+    try {
+      queue.add(task);
+    } catch (TaskAlreadyExistsException e) {
+      /* An earlier attempt of this step already chained the next one */
+    }
+  }
+
+  private void runLocally(String cursor) {
+    int attempt = 1;
+    while (true) {
+      try {
+        cursor = step.run(cursor);
+        if (cursor == null) {
+          return;
+        }
+        attempt = 1;
+      } catch (RuntimeException e) {
+        if (attempt >= MAX_STEP_ATTEMPTS) {
+          step.giveUp(e);
+          return;
+        }
+        try {
+          Thread.sleep(INITIAL_BACKOFF_MILLIS << (attempt - 1));
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          step.giveUp(e);
+          return;
+        }
+        attempt++;
+      }
+    }
+  }
+}
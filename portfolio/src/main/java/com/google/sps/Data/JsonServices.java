@@ -0,0 +1,52 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Holds the Gson instance shared by every class that writes JSON. Gson is thread-safe.
+ * The response types are written and read by their own adapters rather than by reflection,
+ * which Gson would otherwise set up on first use and go through for every field. Like
+ * Gson's default, null fields are left out.
+ */
+public final class JsonServices {
+
+  private static final Gson GSON = new GsonBuilder()
+      .registerTypeAdapter(Message.class, new Message.Adapter().nullSafe())
+      .registerTypeAdapter(Weekday.class, new Weekday.Adapter().nullSafe())
+      .registerTypeAdapter(VisitBucket.class, new VisitBucket.Adapter().nullSafe())
+      .registerTypeAdapter(PurgeStatus.class, new PurgeStatus.Adapter().nullSafe())
+      .create();
+
+  private JsonServices() {}
+
+  public static Gson getGson() {
+    return GSON;
+  }
+
+  /* Reads a string field of an adapter, which may be null */
+  static String nextStringOrNull(JsonReader reader) throws IOException {
+    if (reader.peek() == JsonToken.NULL) {
+      reader.nextNull();
+      return null;
+    }
+    return reader.nextString();
+  }
+}
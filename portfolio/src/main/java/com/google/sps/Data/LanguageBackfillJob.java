@@ -0,0 +1,68 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.taskqueue.Queue;
+
+/**
+ * One-off job giving a 'lang' property to the comments stored before every comment had
+ * one, after which /data pages read it and skip translating comments already in the
+ * requested language.
+ */
+public final class LanguageBackfillJob implements JobChain.Step {
+
+  public static final String JOB_NAME = "message-languages";
+
+  /* Task name suffix shared by every instance, so only one of them starts the job */
+  private static final String RUN_ID = "1";
+  private static final int BATCH_SIZE = 500;
+  private static final int BATCHES_PER_STEP = 20;
+
+  private final DatastoreMessageRepository messages;
+  private final JobChain chain;
+
+  public LanguageBackfillJob(DatastoreMessageRepository messages, Queue queue) {
+    this.messages = messages;
+    this.chain = new JobChain(JOB_NAME, this, queue);
+  }
+
+  public JobChain getChain() {
+    return chain;
+  }
+
+  /*
+   * Starts the backfill unless it already finished.
+   */
+  public void startIfNeeded() {
+    if (!messages.languagesBackfilled()) {
+      chain.startOnce(RUN_ID);
+    }
+  }
+
+  @Override
+  public String run(String cursor) {
+    String nextCursor = messages.backfillLanguages(BATCH_SIZE, cursor);
+    for (int batch = 1; (batch < BATCHES_PER_STEP) && (nextCursor != null); batch++) {
+      nextCursor = messages.backfillLanguages(BATCH_SIZE, nextCursor);
+    }
+    return nextCursor;
+  }
+
+  @Override
+  public void giveUp(RuntimeException error) {
+    System.err.println("Comment language backfill failed, pages keep translating every "
+                       + "comment: " + error);
+  }
+}
@@ -0,0 +1,101 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets in the style of HdrHistogram:
+ * every power of two of microseconds is split into 16 buckets, so a percentile is read
+ * back within about 6% of the recorded value. Recording is a few atomic increments.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sumMicros = new LongAdder();
+  private final LongAccumulator maxMicros = new LongAccumulator(Long::max, 0);
+
+  public void recordNanos(long nanos) {
+    long micros = Math.max(0, nanos / 1000);
+    counts.incrementAndGet(bucketOf(micros));
+    count.increment();
+    sumMicros.add(micros);
+    maxMicros.accumulate(micros);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getSumMicros() {
+    return sumMicros.sum();
+  }
+
+  public long getMaxMicros() {
+    return maxMicros.get();
+  }
+
+  /*
+   * Returns the upper bound in microseconds of the bucket holding the given quantile
+   * (between 0 and 1) of the recorded values, or 0 if nothing was recorded.
+   */
+  public long getQuantileMicros(double quantile) {
+    long[] snapshot = new long[BUCKETS];
+    long total = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      snapshot[bucket] = counts.get(bucket);
+      total += snapshot[bucket];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(quantile * total));
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      seen += snapshot[bucket];
+      if (seen >= rank) {
+        return Math.min(upperBoundOf(bucket), getMaxMicros());
+      }
+    }
+    return getMaxMicros();
+  }
+
+  /* Values below 16 have a bucket each; above, the top five bits pick the bucket */
+  private static int bucketOf(long micros) {
+    if (micros < SUB_BUCKETS) {
+      return (int) micros;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long subBucket = bucket % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    return ((SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+  }
+}
@@ -0,0 +1,579 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Comment store for self-hosted deployments: an append-only log split into fixed-size,
+ * memory-mapped segment files. A record is its body length, the CRC32 of its body and the
+ * body, and the length is written last, so a record torn by a crash reads as the end of the
+ * log and is erased when the log is reopened. Deletes append tombstones; once more than
+ * half of the stored comments are deleted, the rest are copied into a new generation of
+ * segments, which replaces the old one when the CURRENT file is atomically rewritten.
+ *
+ * The directory is locked while the log is open, so only one process serves it, and the
+ * page versions and translations that CommentServices keeps in process alongside it see
+ * every write.
+ *
+ * Comments are appended in (timestampMillis, id) order, a comment that loses the append
+ * race to a newer one taking that one's time, so the log read backwards is in the
+ * 'timestampMillis DESC' order of the Datastore query. A sparse in-memory index holds the
+ * position of every INDEX_INTERVAL-th comment; a page is found by binary search on it and
+ * read backwards block by block, decoding fields straight from slices of the mapped
+ * segments. Cursors are 'timestamp:id' keys, so they stay valid across compactions.
+ */
+public final class MappedLogMessageRepository implements MessageRepository {
+
+  private static final int INDEX_INTERVAL = 64;
+  private static final int HEADER_BYTES = 8;
+  private static final byte ADD = 1;
+  private static final byte DELETE = 2;
+  private static final String CURRENT_FILE = "CURRENT";
+  private static final String PURGE_PROGRESS_FILE = "purge-progress.properties";
+  private static final String LOCK_FILE = "LOCK";
+
+  /* Logs open in this process. File locks are held per process, and closing any channel
+   * to the lock file would release the one already held, so these are checked first */
+  private static final Set<Path> openDirectories = new HashSet<Path>();
+
+  private final Path directory;
+  private final int segmentBytes;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  /* Held for as long as the process runs */
+  private final FileLock directoryLock;
+
+  private Log log;
+  private Set<Long> deletedIds = new HashSet<Long>();
+  /* Ids handed out by reserveIds() whose comments are not in the log yet */
+  private final Set<Long> reservedIds = new HashSet<Long>();
+  private long nextId = 1;
+  private long lastId;
+  private long lastTimestampMillis;
+
+  /*
+   * Opens the log in directory, creating it if needed. Every record is checked against its
+   * CRC, and whatever follows the first invalid one is erased. Throws if the log is already
+   * open, in this process or another one.
+   */
+  public MappedLogMessageRepository(Path directory, int segmentBytes) throws IOException {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    Files.createDirectories(directory);
+    directoryLock = lockDirectory(directory);
+    long generation = 0;
+    Path current = directory.resolve(CURRENT_FILE);
+    if (Files.exists(current)) {
+      generation = Long.parseLong(new String(Files.readAllBytes(current),
+                                             StandardCharsets.UTF_8).trim());
+    }
+    /* Segments of a compaction that crashed before switching generations */
+    deleteSegmentsExcept(generation);
+    log = new Log(generation);
+    for (int number = 0; Files.exists(segmentPath(generation, number)); number++) {
+      log.segments.add(openSegment(generation, number));
+      recover(number);
+    }
+  }
+
+  @Override
+  public List<StoredMessage> addAll(List<StoredMessage> messages) {
+    lock.writeLock().lock();
+    try {
+      Set<Segment> written = new HashSet<Segment>();
+      List<StoredMessage> stored = new ArrayList<StoredMessage>(messages.size());
+      for (StoredMessage message : messages) {
+        long id = message.getId();
+        if (id == 0) {
+          id = nextId++;
+        } else if (!reservedIds.contains(id)) {
+          /* Appended by an earlier attempt of the same write */
+          stored.add(message);
+          continue;
+        }
+        long timestampMillis = Math.max(message.getTimestampMillis(), lastTimestampMillis);
+        /* A reserved id can be lower than one appended after it was reserved */
+        if ((timestampMillis == lastTimestampMillis) && (id < lastId)) {
+          timestampMillis++;
+        }
+        StoredMessage storedMessage = new StoredMessage(id, message.getUsername(),
+                                                        message.getText(), timestampMillis,
+                                                        message.getLanguageCode());
+        written.add(append(log, encodeAdd(storedMessage), storedMessage));
+        stored.add(storedMessage);
+        reservedIds.remove(id);
+        lastId = id;
+        lastTimestampMillis = timestampMillis;
+      }
+      force(written);
+      return stored;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public List<StoredMessage> reserveIds(List<StoredMessage> messages) {
+    lock.writeLock().lock();
+    try {
+      List<StoredMessage> reserved = new ArrayList<StoredMessage>(messages.size());
+      for (StoredMessage message : messages) {
+        reservedIds.add(nextId);
+        reserved.add(message.withId(nextId++));
+      }
+      return reserved;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public RepositoryPage<StoredMessage> getPage(int pageSize, String startCursor) {
+    StoredMessage after = decodeCursor(startCursor);
+    List<StoredMessage> page = new ArrayList<StoredMessage>(pageSize);
+    lock.readLock().lock();
+    try {
+      int block = (after == null) ? log.index.size() - 1 : lastBlockBefore(after);
+      for (; (block >= 0) && (page.size() < pageSize); block--) {
+        List<StoredMessage> records = readBlock(log, block);
+        for (int i = records.size() - 1; (i >= 0) && (page.size() < pageSize); i--) {
+          StoredMessage record = records.get(i);
+          if (((after == null) || (compare(record, after) < 0))
+              && !deletedIds.contains(record.getId())) {
+            page.add(record);
+          }
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    String endCursor = page.isEmpty()
+        ? ((startCursor == null) ? "" : startCursor) : encodeCursor(page.get(page.size() - 1));
+    return new RepositoryPage<StoredMessage>(page, endCursor);
+  }
+
+  @Override
+  public RepositoryPage<Long> getIds(int limit, String startCursor) {
+    RepositoryPage<StoredMessage> page = getPage(limit, startCursor);
+    List<Long> ids = new ArrayList<Long>(page.getItems().size());
+    for (StoredMessage message : page.getItems()) {
+      ids.add(message.getId());
+    }
+    return new RepositoryPage<Long>(ids, page.getEndCursor());
+  }
+
+  @Override
+  public Future<Void> deleteAll(List<Long> ids) {
+    lock.writeLock().lock();
+    try {
+      Set<Segment> written = new HashSet<Segment>();
+      for (Long id : ids) {
+        if ((id > 0) && (id < nextId) && deletedIds.add(id)) {
+          written.add(append(log, encodeDelete(id), null));
+        }
+      }
+      force(written);
+      if (deletedIds.size() * 2 > log.messageCount) {
+        compact();
+      }
+      return CompletableFuture.completedFuture(null);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public PurgeProgress getPurgeProgress() {
+    Path path = directory.resolve(PURGE_PROGRESS_FILE);
+    if (!Files.exists(path)) {
+      return null;
+    }
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(path)) {
+      properties.load(in);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    String startedAtMillis = properties.getProperty("startedAtMillis");
+    return new PurgeProgress(properties.getProperty("state"), properties.getProperty("cursor"),
+                             Long.parseLong(properties.getProperty("deletedCount")),
+                             Long.parseLong(startedAtMillis),
+                             Long.parseLong(properties.getProperty("updatedAtMillis",
+                                                                   startedAtMillis)));
+  }
+
+  @Override
+  public void savePurgeProgress(PurgeProgress progress) {
+    Properties properties = new Properties();
+    properties.setProperty("state", progress.getState());
+    properties.setProperty("deletedCount", Long.toString(progress.getDeletedCount()));
+    properties.setProperty("startedAtMillis", Long.toString(progress.getStartedAtMillis()));
+    properties.setProperty("updatedAtMillis", Long.toString(progress.getUpdatedAtMillis()));
+    if (progress.getCursor() != null) {
+      properties.setProperty("cursor", progress.getCursor());
+    }
+    try {
+      Path temporary = directory.resolve(PURGE_PROGRESS_FILE + ".tmp");
+      try (OutputStream out = Files.newOutputStream(temporary)) {
+        properties.store(out, null);
+      }
+      replace(temporary, directory.resolve(PURGE_PROGRESS_FILE));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /*
+   * Copies the comments that are not deleted into the next generation of segments and
+   * switches to it. A crash before CURRENT is replaced leaves the old generation in use.
+   */
+  private void compact() throws IOException {
+    Log compacted = new Log(log.generation + 1);
+    for (int block = 0; block < log.index.size(); block++) {
+      for (StoredMessage record : readBlock(log, block)) {
+        if (!deletedIds.contains(record.getId())) {
+          append(compacted, encodeAdd(record), record);
+        }
+      }
+    }
+    force(new HashSet<Segment>(compacted.segments));
+
+    Path temporary = directory.resolve(CURRENT_FILE + ".tmp");
+    Files.write(temporary, Long.toString(compacted.generation).getBytes(StandardCharsets.UTF_8));
+    replace(temporary, directory.resolve(CURRENT_FILE));
+
+    log = compacted;
+    deletedIds = new HashSet<Long>();
+    deleteSegmentsExcept(compacted.generation);
+  }
+
+  /*
+   * Scans segment number of the log from its start, rebuilding the index, the deleted ids
+   * and the counters, and ends the segment just after its last valid record.
+   */
+  private void recover(int number) {
+    Segment segment = log.segments.get(number);
+    ByteBuffer buffer = segment.buffer;
+    CRC32 crc = new CRC32();
+    int offset = 0;
+    while (offset + HEADER_BYTES <= segmentBytes) {
+      int length = buffer.getInt(offset);
+      if ((length <= 0) || (offset + HEADER_BYTES + length > segmentBytes)) {
+        break;
+      }
+      crc.reset();
+      crc.update(slice(buffer, offset + HEADER_BYTES, length));
+      if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+        break;
+      }
+      if (buffer.get(offset + HEADER_BYTES) == ADD) {
+        StoredMessage record = decodeAdd(buffer, offset);
+        addToIndex(log, record, number, offset);
+        nextId = Math.max(nextId, record.getId() + 1);
+        lastId = record.getId();
+        lastTimestampMillis = Math.max(lastTimestampMillis, record.getTimestampMillis());
+      } else {
+        deletedIds.add(buffer.getLong(offset + HEADER_BYTES + 1));
+      }
+      offset += HEADER_BYTES + length;
+    }
+    segment.end = offset;
+    /* Erases a torn record, so that later appends are not read as its continuation */
+    if ((offset + HEADER_BYTES <= segmentBytes) && (buffer.getInt(offset) != 0)) {
+      for (int position = offset; position < segmentBytes; position++) {
+        buffer.put(position, (byte) 0);
+      }
+      segment.buffer.force();
+    }
+  }
+
+  /*
+   * Writes one record at the end of the last segment of target, opening a new segment when
+   * it does not fit, and indexes it if it is a comment. Returns the segment written to.
+   */
+  private Segment append(Log target, byte[] body, StoredMessage record) throws IOException {
+    if (HEADER_BYTES + body.length > segmentBytes) {
+      throw new IllegalArgumentException("Comment of " + body.length
+                                         + " bytes does not fit in a log segment");
+    }
+    if (target.segments.isEmpty()
+        || (target.lastSegment().end + HEADER_BYTES + body.length > segmentBytes)) {
+      target.segments.add(openSegment(target.generation, target.segments.size()));
+    }
+    Segment segment = target.lastSegment();
+    int offset = segment.end;
+    ByteBuffer buffer = segment.buffer.duplicate();
+    buffer.position(offset + HEADER_BYTES);
+    buffer.put(body);
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    buffer.putInt(offset + 4, (int) crc.getValue());
+    buffer.putInt(offset, body.length);
+    segment.end = offset + HEADER_BYTES + body.length;
+    if (record != null) {
+      addToIndex(target, record, target.segments.size() - 1, offset);
+    }
+    return segment;
+  }
+
+  private static void addToIndex(Log target, StoredMessage record, int number, int offset) {
+    if (target.messageCount % INDEX_INTERVAL == 0) {
+      target.index.add(new IndexEntry(record.getTimestampMillis(), record.getId(),
+                                      number, offset));
+    }
+    target.messageCount++;
+  }
+
+  /*
+   * Returns the comments of a block, the ones from the index entry at block up to the next
+   * entry or the end of the log, oldest first. Deleted comments are included.
+   */
+  private static List<StoredMessage> readBlock(Log source, int block) {
+    List<StoredMessage> records = new ArrayList<StoredMessage>(INDEX_INTERVAL);
+    IndexEntry entry = source.index.get(block);
+    int number = entry.segment;
+    int offset = entry.offset;
+    while ((records.size() < INDEX_INTERVAL) && (number < source.segments.size())) {
+      Segment segment = source.segments.get(number);
+      if (offset >= segment.end) {
+        number++;
+        offset = 0;
+        continue;
+      }
+      int length = segment.buffer.getInt(offset);
+      if (segment.buffer.get(offset + HEADER_BYTES) == ADD) {
+        records.add(decodeAdd(segment.buffer, offset));
+      }
+      offset += HEADER_BYTES + length;
+    }
+    return records;
+  }
+
+  /* Index of the last block starting with a comment older than after, or -1 if none does */
+  private int lastBlockBefore(StoredMessage after) {
+    int low = 0;
+    int high = log.index.size() - 1;
+    int found = -1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      IndexEntry entry = log.index.get(middle);
+      if (compare(entry.timestampMillis, entry.id, after) < 0) {
+        found = middle;
+        low = middle + 1;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return found;
+  }
+
+  private static int compare(StoredMessage record, StoredMessage after) {
+    return compare(record.getTimestampMillis(), record.getId(), after);
+  }
+
+  private static int compare(long timestampMillis, long id, StoredMessage after) {
+    int byTime = Long.compare(timestampMillis, after.getTimestampMillis());
+    return (byTime != 0) ? byTime : Long.compare(id, after.getId());
+  }
+
+  /* Body of a comment record: type, id, timestamp, then length-prefixed UTF-8 strings */
+  private static byte[] encodeAdd(StoredMessage message) {
+    byte[] username = message.getUsername().getBytes(StandardCharsets.UTF_8);
+    byte[] text = message.getText().getBytes(StandardCharsets.UTF_8);
+    byte[] languageCode = (message.getLanguageCode() == null)
+        ? null : message.getLanguageCode().getBytes(StandardCharsets.UTF_8);
+    ByteBuffer body = ByteBuffer.allocate(1 + 8 + 8 + 4 + username.length + 4 + text.length
+                                          + 4 + ((languageCode == null) ? 0 : languageCode.length));
+    body.put(ADD).putLong(message.getId()).putLong(message.getTimestampMillis());
+    body.putInt(username.length).put(username);
+    body.putInt(text.length).put(text);
+    if (languageCode == null) {
+      body.putInt(-1);
+    } else {
+      body.putInt(languageCode.length).put(languageCode);
+    }
+    return body.array();
+  }
+
+  private static byte[] encodeDelete(long id) {
+    return ByteBuffer.allocate(1 + 8).put(DELETE).putLong(id).array();
+  }
+
+  private static StoredMessage decodeAdd(ByteBuffer buffer, int offset) {
+    int position = offset + HEADER_BYTES + 1;
+    long id = buffer.getLong(position);
+    long timestampMillis = buffer.getLong(position + 8);
+    position += 16;
+    String username = decodeString(buffer, position);
+    position += 4 + buffer.getInt(position);
+    String text = decodeString(buffer, position);
+    position += 4 + buffer.getInt(position);
+    String languageCode = decodeString(buffer, position);
+    return new StoredMessage(id, username, text, timestampMillis, languageCode);
+  }
+
+  private static String decodeString(ByteBuffer buffer, int position) {
+    int length = buffer.getInt(position);
+    if (length < 0) {
+      return null;
+    }
+    return StandardCharsets.UTF_8.decode(slice(buffer, position + 4, length)).toString();
+  }
+
+  /* View of length bytes of buffer at position, sharing its memory */
+  private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+    ByteBuffer view = buffer.duplicate();
+    view.limit(position + length);
+    view.position(position);
+    return view.slice();
+  }
+
+  private static String encodeCursor(StoredMessage last) {
+    return last.getTimestampMillis() + ":" + last.getId();
+  }
+
+  private static StoredMessage decodeCursor(String cursor) {
+    if ((cursor == null) || cursor.isEmpty()) {
+      return null;
+    }
+    int separator = cursor.indexOf(':');
+    if (separator < 0) {
+      throw new IllegalArgumentException("Malformed cursor: " + cursor);
+    }
+    return new StoredMessage(Long.parseLong(cursor.substring(separator + 1)), null, null,
+                             Long.parseLong(cursor.substring(0, separator)), null);
+  }
+
+  private static void force(Set<Segment> written) {
+    for (Segment segment : written) {
+      segment.buffer.force();
+    }
+  }
+
+  private Segment openSegment(long generation, int number) throws IOException {
+    try (RandomAccessFile file =
+             new RandomAccessFile(segmentPath(generation, number).toFile(), "rw")) {
+      return new Segment(file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+    }
+  }
+
+  private Path segmentPath(long generation, int number) {
+    return directory.resolve("segment-" + generation + "-" + number + ".log");
+  }
+
+  /* Mapped files stay readable after their deletion until they are unmapped */
+  private void deleteSegmentsExcept(long generation) throws IOException {
+    String keptPrefix = "segment-" + generation + "-";
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.log")) {
+      for (Path file : files) {
+        if (!file.getFileName().toString().startsWith(keptPrefix)) {
+          Files.deleteIfExists(file);
+        }
+      }
+    }
+  }
+
+  private static void replace(Path source, Path target) throws IOException {
+    Files.move(source, target, StandardCopyOption.ATOMIC_MOVE,
+               StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static FileLock lockDirectory(Path directory) throws IOException {
+    Path realDirectory = directory.toRealPath();
+    synchronized (openDirectories) {
+      if (!openDirectories.contains(realDirectory)) {
+        FileChannel channel = FileChannel.open(realDirectory.resolve(LOCK_FILE),
+                                               StandardOpenOption.CREATE,
+                                               StandardOpenOption.WRITE);
+        FileLock directoryLock = channel.tryLock();
+        if (directoryLock != null) {
+          openDirectories.add(realDirectory);
+          return directoryLock;
+        }
+        channel.close();
+      }
+    }
+    throw new IOException("The comment log in " + directory + " is already open");
+  }
+
+  /** The segments of one generation and their sparse index. */
+  private static final class Log {
+    private final long generation;
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final List<IndexEntry> index = new ArrayList<IndexEntry>();
+    private long messageCount;
+
+    private Log(long generation) {
+      this.generation = generation;
+    }
+
+    private Segment lastSegment() {
+      return segments.get(segments.size() - 1);
+    }
+  }
+
+  /** A mapped segment file and the offset just after its last record. */
+  private static final class Segment {
+    private final MappedByteBuffer buffer;
+    private int end;
+
+    private Segment(MappedByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+  }
+
+  /** Key and position of the first comment of a block. */
+  private static final class IndexEntry {
+    private final long timestampMillis;
+    private final long id;
+    private final int segment;
+    private final int offset;
+
+    private IndexEntry(long timestampMillis, long id, int segment, int offset) {
+      this.timestampMillis = timestampMillis;
+      this.id = id;
+      this.segment = segment;
+      this.offset = offset;
+    }
+  }
+}
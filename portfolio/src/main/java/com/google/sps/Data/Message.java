@@ -14,6 +14,11 @@
 
 package com.google.sps.data;
 
+import java.io.IOException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
 /** A message from a specific user. */
 public final class Message {
 
@@ -27,4 +32,38 @@ public final class Message {
     this.text = text;
     this.timestampMillis = timestampMillis;
   }
-}
\ No newline at end of file
+
+  /** Writes and reads a message with the fields and escaping of the /data pages. */
+  static final class Adapter extends TypeAdapter<Message> {
+
+    @Override
+    public void write(JsonWriter writer, Message value) throws IOException {
+      MessageJson.writeMessage(writer, value.username, value.text, value.timestampMillis);
+    }
+
+    @Override
+    public Message read(JsonReader reader) throws IOException {
+      String username = null;
+      String text = null;
+      long timestampMillis = 0;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "username":
+            username = JsonServices.nextStringOrNull(reader);
+            break;
+          case "text":
+            text = JsonServices.nextStringOrNull(reader);
+            break;
+          case "timestampMillis":
+            timestampMillis = reader.nextLong();
+            break;
+          default:
+            reader.skipValue();
+        }
+      }
+      reader.endObject();
+      return new Message(username, text, timestampMillis);
+    }
+  }
+}
@@ -0,0 +1,66 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes comments as the JSON array of Message objects that Gson would produce, one
+ * element at a time, so a page is never held as a single serialized string.
+ */
+public final class MessageJson {
+
+  /* Enough for a few comments, without allocating a large buffer for a short page */
+  private static final int BUFFER_CHARS = 2048;
+
+  private MessageJson() {}
+
+  /*
+   * Writes messages to out as UTF-8 and flushes it. Does not close out.
+   */
+  public static void writeArray(List<StoredMessage> messages, OutputStream out)
+      throws IOException {
+    /* JsonWriter writes a token at a time, which the encoder is slow at without a buffer */
+    JsonWriter writer = new JsonWriter(
+        new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_CHARS));
+    /* Configured like the shared Gson, which escapes HTML characters and leaves out null
+     * fields, as the responses built with it did */
+    writer.setHtmlSafe(true);
+    writer.setSerializeNulls(false);
+    writer.beginArray();
+    for (StoredMessage message : messages) {
+      writeMessage(writer, message.getUsername(), message.getText(),
+                   message.getTimestampMillis());
+    }
+    writer.endArray();
+    writer.flush();
+  }
+
+  /* Shared with Message.Adapter, so both write comments in the same shape */
+  static void writeMessage(JsonWriter writer, String username, String text,
+                           long timestampMillis) throws IOException {
+    writer.beginObject();
+    writer.name("username").value(username);
+    writer.name("text").value(text);
+    writer.name("timestampMillis").value(timestampMillis);
+    writer.endObject();
+  }
+}
@@ -0,0 +1,63 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Storage for comments, read newest first. Cursors are opaque strings that only the
+ * repository that returned them understands; a null cursor means the newest comment.
+ */
+public interface MessageRepository {
+
+  /*
+   * Stores new comments and returns them with the ids they were stored under, in order.
+   * Comments with an id from reserveIds() keep it, and storing one of them again, as a
+   * retried write may, leaves a single copy.
+   */
+  List<StoredMessage> addAll(List<StoredMessage> messages);
+
+  /*
+   * Returns the comments with ids reserved for them, in order, without storing them.
+   */
+  List<StoredMessage> reserveIds(List<StoredMessage> messages);
+
+  /*
+   * Returns up to pageSize comments sorted by timestampMillis, newest first, starting
+   * after startCursor.
+   */
+  RepositoryPage<StoredMessage> getPage(int pageSize, String startCursor);
+
+  /*
+   * Returns the ids of up to limit stored comments starting after startCursor, in no
+   * particular order. Used to delete every comment in batches.
+   */
+  RepositoryPage<Long> getIds(int limit, String startCursor);
+
+  /*
+   * Starts deleting the comments with the given ids. The returned future completes once
+   * they are gone.
+   */
+  Future<Void> deleteAll(List<Long> ids);
+
+  /*
+   * Returns the progress last saved by a comment purge, or null if none was saved. It is
+   * stored alongside the comments so it lasts exactly as long as they do.
+   */
+  PurgeProgress getPurgeProgress();
+
+  void savePurgeProgress(PurgeProgress progress);
+}
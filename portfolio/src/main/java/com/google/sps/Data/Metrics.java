@@ -0,0 +1,144 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import com.google.appengine.api.datastore.PreparedQuery;
+
+/**
+ * Latency histograms of the requests served and of the remote calls made by this
+ * instance, exported in the Prometheus text format by /metrics. Request histograms are
+ * labelled by route and call histograms by the client method called.
+ */
+public final class Metrics {
+
+  public static final String REQUEST_LATENCY = "sps_request_latency_seconds";
+  public static final String CALL_LATENCY = "sps_call_latency_seconds";
+
+  /* Caps the number of label values, so unmapped paths cannot grow the registry forever */
+  private static final int MAX_SERIES_PER_FAMILY = 100;
+  private static final String OVERFLOW_LABEL = "other";
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+  private static final Map<String, Map<String, LatencyHistogram>> families =
+      new ConcurrentHashMap<String, Map<String, LatencyHistogram>>();
+
+  private Metrics() {}
+
+  /*
+   * Returns the histogram of family with the given label value, creating it on first use.
+   */
+  public static LatencyHistogram histogram(String family, String label) {
+    Map<String, LatencyHistogram> series = families.computeIfAbsent(
+        family, name -> new ConcurrentSkipListMap<String, LatencyHistogram>());
+    LatencyHistogram histogram = series.get(label);
+    if (histogram != null) {
+      return histogram;
+    }
+    if (series.size() >= MAX_SERIES_PER_FAMILY) {
+      label = OVERFLOW_LABEL;
+    }
+    return series.computeIfAbsent(label, key -> new LatencyHistogram());
+  }
+
+  /*
+   * Returns a proxy of target that times every call made through the given interface,
+   * recorded in CALL_LATENCY as 'prefix.method'. Prepared Datastore queries it returns are
+   * timed as well, since that is where queries actually run.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> T timed(Class<T> type, T target, String prefix) {
+    InvocationHandler handler = (proxy, method, args) -> {
+      if (method.getDeclaringClass() == Object.class) {
+        return method.invoke(target, args);
+      }
+      LatencyHistogram histogram = histogram(CALL_LATENCY, prefix + "." + method.getName());
+      long startNanos = System.nanoTime();
+      try {
+        Object result = method.invoke(target, args);
+        if (result instanceof PreparedQuery) {
+          result = timed(PreparedQuery.class, (PreparedQuery) result, prefix + ".query");
+        }
+        return result;
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      } finally {
+        histogram.recordNanos(System.nanoTime() - startNanos);
+      }
+    };
+    return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler);
+  }
+
+  /*
+   * Writes every histogram as a Prometheus summary with its maximum, followed by the
+   * startup times.
+   */
+  public static void writePrometheus(PrintWriter out) {
+    writeFamily(out, REQUEST_LATENCY, "route", "Latency of requests by servlet path.");
+    writeFamily(out, CALL_LATENCY, "call", "Latency of Datastore and Translate calls.");
+    writeGauge(out, "sps_startup_initialization_seconds",
+               "Time taken to build the shared services at startup.",
+               StartupMetrics.getInitializationMillis() / 1e3);
+    writeGauge(out, "sps_startup_warmup_seconds",
+               "Time taken by the warmup request.", StartupMetrics.getWarmupMillis() / 1e3);
+  }
+
+  private static void writeFamily(PrintWriter out, String family, String labelName,
+                                  String help) {
+    Map<String, LatencyHistogram> series = families.get(family);
+    out.println("# HELP " + family + " " + help);
+    out.println("# TYPE " + family + " summary");
+    if (series == null) {
+      return;
+    }
+    for (Map.Entry<String, LatencyHistogram> entry : series.entrySet()) {
+      String label = labelName + "=\"" + escape(entry.getKey()) + "\"";
+      LatencyHistogram histogram = entry.getValue();
+      for (double quantile : QUANTILES) {
+        out.println(family + "{" + label + ",quantile=\"" + quantile + "\"} "
+                    + seconds(histogram.getQuantileMicros(quantile)));
+      }
+      out.println(family + "_sum{" + label + "} " + seconds(histogram.getSumMicros()));
+      out.println(family + "_count{" + label + "} " + histogram.getCount());
+    }
+    out.println("# HELP " + family + "_max Largest recorded value.");
+    out.println("# TYPE " + family + "_max gauge");
+    for (Map.Entry<String, LatencyHistogram> entry : series.entrySet()) {
+      out.println(family + "_max{" + labelName + "=\"" + escape(entry.getKey()) + "\"} "
+                  + seconds(entry.getValue().getMaxMicros()));
+    }
+  }
+
+  private static void writeGauge(PrintWriter out, String name, String help, double value) {
+    out.println("# HELP " + name + " " + help);
+    out.println("# TYPE " + name + " gauge");
+    out.println(name + " " + value);
+  }
+
+  private static String seconds(long micros) {
+    return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+  }
+
+  private static String escape(String labelValue) {
+    return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
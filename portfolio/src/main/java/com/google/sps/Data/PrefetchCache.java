@@ -0,0 +1,170 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Short-lived cache of comment pages loaded ahead of the request for them. After a page is
+ * served, the page following its end cursor is loaded in the background, so the client's
+ * next request is answered from memory. At most maxConcurrentPrefetches loads run at once;
+ * further prefetches are skipped rather than queued.
+ *
+ * Loads run on background threads, as the request that triggers one may finish first. App
+ * Engine only allows them with manual or basic scaling, so under the automatic scaling this
+ * app deploys with, maxConcurrentPrefetches is 0 and prefetching is off: prefetch() does
+ * nothing and isEnabled() is false.
+ *
+ * The hit and miss counts only cover requests for pages that prefetch() was asked to load,
+ * so first pages, which never follow another, do not dilute the hit rate.
+ */
+public final class PrefetchCache {
+
+  private final long ttlMillis;
+  private final Semaphore permits;
+  private final ExecutorService executor;
+  private final Map<String, PrefetchedPage> pages = new ConcurrentHashMap<String, PrefetchedPage>();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+
+  public PrefetchCache(long ttlMillis, int maxConcurrentPrefetches) {
+    this.ttlMillis = ttlMillis;
+    this.permits = new Semaphore(maxConcurrentPrefetches);
+    this.executor = (maxConcurrentPrefetches > 0)
+        ? Executors.newFixedThreadPool(maxConcurrentPrefetches,
+                                       ServiceThreads.backgroundThreads("comment-prefetch"))
+        : null;
+  }
+
+  /*
+   * Removes and returns the page prefetched for startCursor, or null if there is none that
+   * was loaded at version and is still fresh. Only counts a hit or miss if the page was to
+   * be prefetched.
+   */
+  public CommentPage take(String languageCode, int pageSize, String startCursor, long version) {
+    PrefetchedPage prefetched = pages.remove(cacheKey(languageCode, pageSize, startCursor));
+    if (prefetched == null) {
+      return null;
+    }
+    if ((prefetched.page == null) || (prefetched.version != version)
+        || (prefetched.expiresAtMillis < System.currentTimeMillis())) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return prefetched.page;
+  }
+
+  /*
+   * Loads the page starting at startCursor in the background unless it is already cached
+   * or every prefetch permit is in use. Either way a later take() of it counts.
+   */
+  public void prefetch(String languageCode, int pageSize, String startCursor, long version,
+                       Supplier<CommentPage> loader) {
+    if (executor == null) {
+      return;
+    }
+    removeExpired();
+    String cacheKey = cacheKey(languageCode, pageSize, startCursor);
+    /* Stands for the page until it is loaded, and stays if it never is */
+    PrefetchedPage pending = new PrefetchedPage(null, version,
+                                                System.currentTimeMillis() + ttlMillis);
+    if (pages.putIfAbsent(cacheKey, pending) != null) {
+      return;
+    }
+    if (!permits.tryAcquire()) {
+      skipped.incrementAndGet();
+      return;
+    }
+    try {
+      executor.execute(() -> {
+        try {
+          pages.replace(cacheKey, pending,
+                        new PrefetchedPage(loader.get(), version,
+                                           System.currentTimeMillis() + ttlMillis));
+        } catch (RuntimeException e) {
+          System.err.println("Comment prefetch failed: " + e);
+        } finally {
+          permits.release();
+        }
+      });
+    } catch (RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  public boolean isEnabled() {
+    return executor != null;
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getSkipped() {
+    return skipped.get();
+  }
+
+  /*
+   * Stops background loads. Prefetches still running are abandoned.
+   */
+  public void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /* Pages that are never asked for would otherwise stay in the map forever */
+  private void removeExpired() {
+    long now = System.currentTimeMillis();
+    Iterator<PrefetchedPage> iterator = pages.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().expiresAtMillis < now) {
+        iterator.remove();
+      }
+    }
+  }
+
+  private static String cacheKey(String languageCode, int pageSize, String startCursor) {
+    return languageCode + ":" + pageSize + ":" + startCursor;
+  }
+
+  /** A prefetched page, or a placeholder with a null page while it loads. */
+  private static final class PrefetchedPage {
+    private final CommentPage page;
+    private final long version;
+    private final long expiresAtMillis;
+
+    private PrefetchedPage(CommentPage page, long version, long expiresAtMillis) {
+      this.page = page;
+      this.version = version;
+      this.expiresAtMillis = expiresAtMillis;
+    }
+  }
+}
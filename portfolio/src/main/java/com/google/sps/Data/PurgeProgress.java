@@ -0,0 +1,58 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+/**
+ * Saved position of a comment purge: its state, the id cursor it has deleted up to (null
+ * before the first batch), how many comments it has deleted since startedAtMillis and when
+ * it was last saved.
+ */
+public final class PurgeProgress {
+
+  private final String state;
+  private final String cursor;
+  private final long deletedCount;
+  private final long startedAtMillis;
+  private final long updatedAtMillis;
+
+  public PurgeProgress(String state, String cursor, long deletedCount, long startedAtMillis,
+                       long updatedAtMillis) {
+    this.state = state;
+    this.cursor = cursor;
+    this.deletedCount = deletedCount;
+    this.startedAtMillis = startedAtMillis;
+    this.updatedAtMillis = updatedAtMillis;
+  }
+
+  public String getState() {
+    return state;
+  }
+
+  public String getCursor() {
+    return cursor;
+  }
+
+  public long getDeletedCount() {
+    return deletedCount;
+  }
+
+  public long getStartedAtMillis() {
+    return startedAtMillis;
+  }
+
+  public long getUpdatedAtMillis() {
+    return updatedAtMillis;
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/** Progress of a background purge of all comments. */
+public final class PurgeStatus {
+
+  public static final String IDLE = "idle";
+  public static final String RUNNING = "running";
+  public static final String DONE = "done";
+  public static final String FAILED = "failed";
+
+  private final String state;
+  private final long deletedCount;
+  private final long startedAtMillis;
+  private final long elapsedMillis;
+  private final double deletesPerSecond;
+
+  public PurgeStatus(String state, long deletedCount, long startedAtMillis, long elapsedMillis) {
+    this.state = state;
+    this.deletedCount = deletedCount;
+    this.startedAtMillis = startedAtMillis;
+    this.elapsedMillis = elapsedMillis;
+    this.deletesPerSecond = (elapsedMillis > 0) ? deletedCount * 1000.0 / elapsedMillis : 0;
+  }
+
+  public String getState() {
+    return state;
+  }
+
+  /** Writes and reads the status polled by script.js while a purge runs. */
+  static final class Adapter extends TypeAdapter<PurgeStatus> {
+
+    @Override
+    public void write(JsonWriter writer, PurgeStatus value) throws IOException {
+      writer.beginObject();
+      writer.name("state").value(value.state);
+      writer.name("deletedCount").value(value.deletedCount);
+      writer.name("startedAtMillis").value(value.startedAtMillis);
+      writer.name("elapsedMillis").value(value.elapsedMillis);
+      writer.name("deletesPerSecond").value(value.deletesPerSecond);
+      writer.endObject();
+    }
+
+    /* deletesPerSecond is derived from the other fields, so it is not read back */
+    @Override
+    public PurgeStatus read(JsonReader reader) throws IOException {
+      String state = null;
+      long deletedCount = 0;
+      long startedAtMillis = 0;
+      long elapsedMillis = 0;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "state":
+            state = JsonServices.nextStringOrNull(reader);
+            break;
+          case "deletedCount":
+            deletedCount = reader.nextLong();
+            break;
+          case "startedAtMillis":
+            startedAtMillis = reader.nextLong();
+            break;
+          case "elapsedMillis":
+            elapsedMillis = reader.nextLong();
+            break;
+          default:
+            reader.skipValue();
+        }
+      }
+      reader.endObject();
+      return new PurgeStatus(state, deletedCount, startedAtMillis, elapsedMillis);
+    }
+  }
+}
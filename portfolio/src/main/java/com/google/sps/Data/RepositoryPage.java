@@ -0,0 +1,40 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.List;
+
+/**
+ * One page of results read from a repository, with the cursor that continues after it.
+ */
+public final class RepositoryPage<T> {
+
+  private final List<T> items;
+  private final String endCursor;
+
+  public RepositoryPage(List<T> items, String endCursor) {
+    this.items = items;
+    this.endCursor = endCursor;
+  }
+
+  public List<T> getItems() {
+    return items;
+  }
+
+  /* Opaque web-safe string to pass back to the repository for the following page */
+  public String getEndCursor() {
+    return endCursor;
+  }
+}
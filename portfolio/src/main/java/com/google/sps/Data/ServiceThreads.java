@@ -0,0 +1,71 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.concurrent.ThreadFactory;
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.utils.SystemProperty;
+
+/**
+ * Thread factories for the executors behind the shared services. On App Engine only threads
+ * created through ThreadManager can make API calls: request threads, which must finish
+ * before the request that started them returns, and background threads, which only manual
+ * and basic scaling instances may start. Elsewhere every thread is a plain daemon thread.
+ */
+public final class ServiceThreads {
+
+  private ServiceThreads() {}
+
+  /* True on App Engine, in production or on the development server */
+  public static boolean onAppEngine() {
+    return SystemProperty.environment.value() != null;
+  }
+
+  /*
+   * Returns true if this instance may start threads that outlive a request. On App Engine
+   * that takes the 'sps.backgroundThreads' system property, which deployments using manual
+   * or basic scaling set in appengine-web.xml.
+   */
+  public static boolean backgroundThreadsAllowed() {
+    return !onAppEngine() || Boolean.getBoolean("sps.backgroundThreads");
+  }
+
+  /*
+   * Returns a factory for threads that run independently of any request. Throws if
+   * backgroundThreadsAllowed() is false.
+   */
+  static ThreadFactory backgroundThreads(String name) {
+    if (!backgroundThreadsAllowed()) {
+      throw new IllegalStateException("Background threads need manual or basic scaling");
+    }
+    return onAppEngine() ? ThreadManager.backgroundThreadFactory() : daemonThreads(name);
+  }
+
+  /*
+   * Returns a factory for threads working on behalf of the current request. The request
+   * has to wait for them before it returns.
+   */
+  static ThreadFactory requestThreads(String name) {
+    return onAppEngine() ? ThreadManager.currentRequestThreadFactory() : daemonThreads(name);
+  }
+
+  private static ThreadFactory daemonThreads(String name) {
+    return runnable -> {
+      Thread thread = new Thread(runnable, name);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+}
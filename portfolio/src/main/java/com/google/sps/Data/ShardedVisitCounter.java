@@ -0,0 +1,156 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.ThreadLocalRandom;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * Visit counter per weekday, split over several 'WeekdayShards' entities so concurrent
+ * increments rarely touch the same entity group. Each increment goes to a random shard in
+ * a transaction. When a transaction loses to a concurrent write the day's shard count,
+ * kept in a 'WeekdayShardConfig' entity, is raised so later increments spread wider.
+ */
+public final class ShardedVisitCounter {
+
+  public static final int DAYS = 7;
+
+  private static final String SHARD_KIND = "WeekdayShards";
+  private static final String CONFIG_KIND = "WeekdayShardConfig";
+  private static final int INITIAL_SHARDS = 2;
+  private static final int MAX_SHARDS = 32;
+  private static final int MAX_ATTEMPTS = 5;
+
+  private final DatastoreService datastore;
+  private final int[] shardCounts = new int[DAYS];
+
+  public ShardedVisitCounter(DatastoreService datastore) {
+    this.datastore = datastore;
+  }
+
+  /*
+   * Adds delta visits to the weekday at dayIndex (Monday is 0).
+   */
+  public void increment(int dayIndex, long delta) {
+    for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+      int shard = ThreadLocalRandom.current().nextInt(getShardCount(dayIndex));
+      Key shardKey = KeyFactory.createKey(SHARD_KIND, "day-" + dayIndex + "-shard-" + shard);
+      Transaction transaction = datastore.beginTransaction();
+      try {
+        Entity shardEntity;
+        try {
+          shardEntity = datastore.get(transaction, shardKey);
+        } catch (EntityNotFoundException e) {
+          shardEntity = new Entity(shardKey);
+          shardEntity.setProperty("index", dayIndex);
+          shardEntity.setUnindexedProperty("visits", 0L);
+        }
+        shardEntity.setUnindexedProperty("visits",
+                                         (long) shardEntity.getProperty("visits") + delta);
+        datastore.put(transaction, shardEntity);
+        transaction.commit();
+        return;
+      } catch (ConcurrentModificationException e) {
+        growShards(dayIndex);
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+    throw new ConcurrentModificationException("Could not record visit for day " + dayIndex);
+  }
+
+  /*
+   * Returns the total visits per weekday, summed over every shard. Counts written by the
+   * unsharded counter to 'Weekdays' entities are included.
+   */
+  public long[] getTotals() {
+    long[] totals = new long[DAYS];
+    for (Entity shardEntity : datastore.prepare(new Query(SHARD_KIND)).asIterable()) {
+      totals[(int) (long) shardEntity.getProperty("index")] +=
+          (long) shardEntity.getProperty("visits");
+    }
+    for (Entity legacyEntity : datastore.prepare(new Query("Weekdays")).asIterable()) {
+      if ((legacyEntity.getProperty("index") != null)
+          && (legacyEntity.getProperty("visits") != null)) {
+        totals[(int) (long) legacyEntity.getProperty("index")] +=
+            (long) legacyEntity.getProperty("visits");
+      }
+    }
+    return totals;
+  }
+
+  private int getShardCount(int dayIndex) {
+    synchronized (shardCounts) {
+      if (shardCounts[dayIndex] == 0) {
+        try {
+          Entity config = datastore.get(configKey(dayIndex));
+          shardCounts[dayIndex] = (int) (long) config.getProperty("shardCount");
+        } catch (EntityNotFoundException e) {
+          shardCounts[dayIndex] = INITIAL_SHARDS;
+        }
+      }
+      return shardCounts[dayIndex];
+    }
+  }
+
+  /*
+   * Doubles the day's shard count after observed contention. The stored count only grows,
+   * so instances converge on the largest count any of them needed.
+   */
+  private void growShards(int dayIndex) {
+    int grownCount;
+    synchronized (shardCounts) {
+      if (shardCounts[dayIndex] >= MAX_SHARDS) {
+        return;
+      }
+      grownCount = Math.min(MAX_SHARDS, shardCounts[dayIndex] * 2);
+      shardCounts[dayIndex] = grownCount;
+    }
+    Transaction transaction = datastore.beginTransaction();
+    try {
+      Entity config;
+      try {
+        config = datastore.get(transaction, configKey(dayIndex));
+      } catch (EntityNotFoundException e) {
+        config = new Entity(configKey(dayIndex));
+        config.setUnindexedProperty("shardCount", (long) INITIAL_SHARDS);
+      }
+      if ((long) config.getProperty("shardCount") < grownCount) {
+        config.setUnindexedProperty("shardCount", (long) grownCount);
+        datastore.put(transaction, config);
+      }
+      transaction.commit();
+    } catch (ConcurrentModificationException e) {
+      /* Another instance grew the count at the same time; ours is picked up next restart */
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+
+  private static Key configKey(int dayIndex) {
+    return KeyFactory.createKey(CONFIG_KIND, "day-" + dayIndex);
+  }
+}
@@ -0,0 +1,43 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+/**
+ * How long this instance took to start: building the shared services when the context
+ * was initialized, and priming the caches on the warmup request. Zero until measured.
+ */
+public final class StartupMetrics {
+
+  private static volatile long initializationMillis;
+  private static volatile long warmupMillis;
+
+  private StartupMetrics() {}
+
+  public static void recordInitialization(long millis) {
+    initializationMillis = millis;
+  }
+
+  public static void recordWarmup(long millis) {
+    warmupMillis = millis;
+  }
+
+  public static long getInitializationMillis() {
+    return initializationMillis;
+  }
+
+  public static long getWarmupMillis() {
+    return warmupMillis;
+  }
+}
@@ -0,0 +1,68 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+/**
+ * A comment as kept by a MessageRepository. The id is assigned by the repository when the
+ * comment is stored and is 0 before that. The language is the one detected when the comment
+ * was posted, or null if it is unknown.
+ */
+public final class StoredMessage {
+
+  private final long id;
+  private final String username;
+  private final String text;
+  private final long timestampMillis;
+  private final String languageCode;
+
+  public StoredMessage(long id, String username, String text, long timestampMillis,
+                       String languageCode) {
+    this.id = id;
+    this.username = username;
+    this.text = text;
+    this.timestampMillis = timestampMillis;
+    this.languageCode = languageCode;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public String getUsername() {
+    return username;
+  }
+
+  public String getText() {
+    return text;
+  }
+
+  public long getTimestampMillis() {
+    return timestampMillis;
+  }
+
+  public String getLanguageCode() {
+    return languageCode;
+  }
+
+  /* The same comment under the id it was stored with */
+  public StoredMessage withId(long storedId) {
+    return new StoredMessage(storedId, username, text, timestampMillis, languageCode);
+  }
+
+  /* The fields sent to clients */
+  public Message toMessage() {
+    return new Message(username, text, timestampMillis);
+  }
+}
@@ -0,0 +1,64 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the Cloud Translation API. Every call sleeps for a fixed latency
+ * and tags each text with the target language, so round trips can be measured offline.
+ * Detection always reports English.
+ */
+public final class StubTranslator implements Translator, LanguageDetector {
+
+  private final long latencyMillis;
+  private final AtomicLong calls = new AtomicLong();
+
+  public StubTranslator(long latencyMillis) {
+    this.latencyMillis = latencyMillis;
+  }
+
+  @Override
+  public List<String> translate(List<String> texts, String languageCode) {
+    simulateRoundTrip();
+    List<String> translatedTexts = new ArrayList<String>(texts.size());
+    for (String text : texts) {
+      translatedTexts.add("[" + languageCode + "] " + text);
+    }
+    return translatedTexts;
+  }
+
+  @Override
+  public String detectLanguage(String text) {
+    simulateRoundTrip();
+    return "en";
+  }
+
+  private void simulateRoundTrip() {
+    calls.incrementAndGet();
+    try {
+      Thread.sleep(latencyMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /* Number of simulated remote round trips made so far */
+  public long getCallCount() {
+    return calls.get();
+  }
+}
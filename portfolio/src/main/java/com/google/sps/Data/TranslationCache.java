@@ -0,0 +1,219 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * Two-tier cache in front of another Translator. Translations are keyed by a hash of the
+ * source text and the target language, and are looked up first in a bounded in-process
+ * LRU with a TTL, then in the 'TranslatedMessages' Datastore kind. Only texts missing
+ * from both tiers reach the delegate. Without Datastore only the in-process tier is used.
+ */
+public final class TranslationCache implements Translator {
+
+  public static final String KIND = "TranslatedMessages";
+
+  private final Translator delegate;
+  private final DatastoreService datastore;
+  private final long ttlMillis;
+  private final Map<String, CachedTranslation> memory;
+
+  private final AtomicLong memoryHits = new AtomicLong();
+  private final AtomicLong datastoreHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /* datastore may be null, which keeps translations in process only */
+  public TranslationCache(Translator delegate, DatastoreService datastore,
+                          int maxEntries, long ttlMillis) {
+    this.delegate = delegate;
+    this.datastore = datastore;
+    this.ttlMillis = ttlMillis;
+    /* Access-ordered so the eldest entry is always the least recently used one */
+    this.memory = new LinkedHashMap<String, CachedTranslation>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedTranslation> eldest) {
+        if (size() > maxEntries) {
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  @Override
+  public List<String> translate(List<String> texts, String languageCode) {
+    long now = System.currentTimeMillis();
+    Map<String, String> found = new HashMap<String, String>();
+    /* Texts the in-process tier did not have, by cache key */
+    Map<String, String> lookups = new LinkedHashMap<String, String>();
+
+    synchronized (memory) {
+      for (String text : texts) {
+        String cacheKey = cacheKey(text, languageCode);
+        if (found.containsKey(cacheKey)) {
+          continue;
+        }
+        CachedTranslation cached = memory.get(cacheKey);
+        if ((cached != null) && (cached.expiresAtMillis > now)) {
+          memoryHits.incrementAndGet();
+          found.put(cacheKey, cached.translatedText);
+        } else {
+          if (cached != null) {
+            memory.remove(cacheKey);
+            evictions.incrementAndGet();
+          }
+          lookups.put(cacheKey, text);
+        }
+      }
+    }
+
+    /* Second tier: one batch get for everything the in-process tier did not have */
+    List<String> missedTexts = new ArrayList<String>();
+    if ((datastore == null) && !lookups.isEmpty()) {
+      misses.addAndGet(lookups.size());
+      missedTexts.addAll(lookups.values());
+    } else if (!lookups.isEmpty()) {
+      Map<Key, String> datastoreLookups = new LinkedHashMap<Key, String>();
+      for (Map.Entry<String, String> lookup : lookups.entrySet()) {
+        datastoreLookups.put(KeyFactory.createKey(KIND, lookup.getKey()), lookup.getValue());
+      }
+      Map<Key, Entity> stored = datastore.get(datastoreLookups.keySet());
+      for (Map.Entry<Key, String> lookup : datastoreLookups.entrySet()) {
+        Entity entity = stored.get(lookup.getKey());
+        if (entity != null) {
+          datastoreHits.incrementAndGet();
+          String translatedText = ((Text) entity.getProperty("translatedText")).getValue();
+          found.put(lookup.getKey().getName(), translatedText);
+          remember(lookup.getKey().getName(), translatedText);
+        } else {
+          misses.incrementAndGet();
+          missedTexts.add(lookup.getValue());
+        }
+      }
+    }
+
+    if (!missedTexts.isEmpty()) {
+      List<String> translatedTexts = delegate.translate(missedTexts, languageCode);
+      List<Entity> entities = new ArrayList<Entity>(missedTexts.size());
+      for (int i = 0; i < missedTexts.size(); i++) {
+        String cacheKey = cacheKey(missedTexts.get(i), languageCode);
+        found.put(cacheKey, translatedTexts.get(i));
+        remember(cacheKey, translatedTexts.get(i));
+        if (datastore != null) {
+          entities.add(toEntity(cacheKey, translatedTexts.get(i)));
+        }
+      }
+      if (datastore != null) {
+        datastore.put(entities);
+      }
+    }
+
+    List<String> results = new ArrayList<String>(texts.size());
+    for (String text : texts) {
+      results.add(found.get(cacheKey(text, languageCode)));
+    }
+    return results;
+  }
+
+  /*
+   * Records a translation produced elsewhere in both tiers.
+   */
+  public void store(String text, String languageCode, String translatedText) {
+    String cacheKey = cacheKey(text, languageCode);
+    remember(cacheKey, translatedText);
+    if (datastore != null) {
+      datastore.put(toEntity(cacheKey, translatedText));
+    }
+  }
+
+  public long getMemoryHits() {
+    return memoryHits.get();
+  }
+
+  public long getDatastoreHits() {
+    return datastoreHits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public int getMemorySize() {
+    synchronized (memory) {
+      return memory.size();
+    }
+  }
+
+  private void remember(String cacheKey, String translatedText) {
+    CachedTranslation cached = new CachedTranslation(translatedText,
+                                                     System.currentTimeMillis() + ttlMillis);
+    synchronized (memory) {
+      memory.put(cacheKey, cached);
+    }
+  }
+
+  private static Entity toEntity(String cacheKey, String translatedText) {
+    Entity entity = new Entity(KIND, cacheKey);
+    entity.setUnindexedProperty("translatedText", new Text(translatedText));
+    return entity;
+  }
+
+  /* Cache keys look like 'es:<sha-256 of the source text>' */
+  private static String cacheKey(String text, String languageCode) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[] hash = digest.digest(text.getBytes(StandardCharsets.UTF_8));
+      StringBuilder key = new StringBuilder(languageCode.length() + 1 + hash.length * 2);
+      key.append(languageCode).append(':');
+      for (byte b : hash) {
+        key.append(Character.forDigit((b >> 4) & 0xf, 16));
+        key.append(Character.forDigit(b & 0xf, 16));
+      }
+      return key.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  private static final class CachedTranslation {
+    private final String translatedText;
+    private final long expiresAtMillis;
+
+    private CachedTranslation(String translatedText, long expiresAtMillis) {
+      this.translatedText = translatedText;
+      this.expiresAtMillis = expiresAtMillis;
+    }
+  }
+}
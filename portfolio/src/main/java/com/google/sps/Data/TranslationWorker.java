@@ -0,0 +1,115 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+/**
+ * Background stage that translates newly posted comments into a fixed set of languages
+ * and stores the results in the translation cache, so reads of /data find them there
+ * instead of calling the API. On App Engine each translation is a push task on the
+ * 'translate' queue, which retries it with the backoff set in queue.xml. Elsewhere the
+ * translations run on a local thread and are retried with exponential backoff.
+ */
+public final class TranslationWorker {
+
+  public static final String QUEUE_NAME = "translate";
+  public static final String TASK_URL = "/tasks/translate";
+
+  private static final int MAX_ATTEMPTS = 5;
+  private static final long INITIAL_BACKOFF_MILLIS = 500;
+
+  private final TranslationCache cache;
+  private final List<String> languageCodes;
+  private final Queue queue;
+  private final ScheduledExecutorService executor;
+
+  /*
+   * Creates a worker that enqueues its translations on queue, or runs them on a local
+   * thread if queue is null.
+   */
+  public TranslationWorker(TranslationCache cache, List<String> languageCodes, Queue queue) {
+    this.cache = cache;
+    this.languageCodes = languageCodes;
+    this.queue = queue;
+    this.executor = (queue != null) ? null : Executors.newSingleThreadScheduledExecutor(
+        ServiceThreads.backgroundThreads("translate-on-write"));
+  }
+
+  /*
+   * Queues text to be translated into every configured language other than sourceLanguageCode,
+   * which may be null if it is unknown. The untranslated text is cached for the source language.
+   */
+  public void submit(String text, String sourceLanguageCode) {
+    if (queue == null) {
+      for (String languageCode : languageCodes) {
+        executor.execute(() -> translateLocally(text, languageCode, sourceLanguageCode, 1));
+      }
+      return;
+    }
+    List<TaskOptions> tasks = new ArrayList<TaskOptions>(languageCodes.size());
+    for (String languageCode : languageCodes) {
+      TaskOptions task = TaskOptions.Builder.withUrl(TASK_URL)
+          .param("text", text)
+          .param("lang", languageCode);
+      if (sourceLanguageCode != null) {
+        task.param("source", sourceLanguageCode);
+      }
+      tasks.add(task);
+    }
+    try {
+      queue.add(tasks);
+    } catch (RuntimeException e) {
+      /* The comment is stored either way; it is then translated on its first read */
+      System.err.println("Could not queue comment translations: " + e);
+    }
+  }
+
+  /*
+   * Translates text into languageCode and caches the result, or caches text itself if it is
+   * already in that language. Run by the task queue handler; throws if Translate fails, so
+   * the queue retries the task.
+   */
+  public void translate(String text, String languageCode, String sourceLanguageCode) {
+    if (languageCode.equals(sourceLanguageCode)) {
+      cache.store(text, languageCode, text);
+    } else {
+      cache.translate(Collections.singletonList(text), languageCode);
+    }
+  }
+
+  private void translateLocally(String text, String languageCode, String sourceLanguageCode,
+                                int attempt) {
+    try {
+      translate(text, languageCode, sourceLanguageCode);
+    } catch (RuntimeException e) {
+      if (attempt >= MAX_ATTEMPTS) {
+        System.err.println("Giving up translating comment into " + languageCode + ": " + e);
+        return;
+      }
+      long backoffMillis = INITIAL_BACKOFF_MILLIS << (attempt - 1);
+      executor.schedule(() -> translateLocally(text, languageCode, sourceLanguageCode,
+                                               attempt + 1),
+                        backoffMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+}
@@ -0,0 +1,96 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.Arrays;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.cloud.translate.TranslateOptions;
+
+/** Holds the translator shared by every servlet that translates comments. */
+public final class Translators {
+
+  /* The v2 Translation API accepts at most 128 texts per request */
+  private static final int MAX_TRANSLATE_BATCH_SIZE = 128;
+  private static final int MAX_PARALLEL_TRANSLATE_BATCHES = 4;
+
+  private static final int CACHE_MAX_ENTRIES = 10000;
+  private static final long CACHE_TTL_MILLIS = 60 * 60 * 1000;
+
+  /* Languages offered by the comment section in script.js */
+  private static final String DEFAULT_LANGUAGES = "en,es";
+
+  private static LanguageDetector detector;
+  private static TranslationCache cache;
+  private static TranslationWorker worker;
+
+  private Translators() {}
+
+  /*
+   * Returns the shared cached translator, creating it on first use. Uses the stub translator
+   * when the 'sps.translate.stubLatencyMillis' system property is set, so page latency can be
+   * measured without calling the real API, and by default with embedded storage, which runs
+   * without any Google services. Translations are only cached in process when comments are
+   * stored outside Datastore.
+   */
+  public static synchronized TranslationCache getCache() {
+    if (cache == null) {
+      String stubLatency = System.getProperty(
+          "sps.translate.stubLatencyMillis",
+          System.getProperty("sps.storage", "datastore").equals("embedded") ? "0" : null);
+      Translator baseTranslator;
+      if (stubLatency != null) {
+        StubTranslator stubTranslator = new StubTranslator(Long.parseLong(stubLatency));
+        baseTranslator = Metrics.timed(Translator.class, stubTranslator, "translate");
+        detector = Metrics.timed(LanguageDetector.class, stubTranslator, "translate");
+      } else {
+        CloudTranslator cloudTranslator =
+            new CloudTranslator(TranslateOptions.getDefaultInstance().getService());
+        baseTranslator = Metrics.timed(Translator.class, cloudTranslator, "translate");
+        detector = Metrics.timed(LanguageDetector.class, cloudTranslator, "translate");
+      }
+      Translator batchTranslator = new BatchTranslator(baseTranslator, MAX_TRANSLATE_BATCH_SIZE,
+                                                       MAX_PARALLEL_TRANSLATE_BATCHES);
+      cache = new TranslationCache(
+          batchTranslator,
+          CommentServices.usesDatastore() ? CommentServices.timedDatastore() : null,
+          CACHE_MAX_ENTRIES, CACHE_TTL_MILLIS);
+    }
+    return cache;
+  }
+
+  /*
+   * Returns the language detector backed by the same client as the shared translator.
+   */
+  public static synchronized LanguageDetector getDetector() {
+    getCache();
+    return detector;
+  }
+
+  /*
+   * Returns the shared translate-on-write worker, which uses the task queue on App Engine.
+   * The languages it prepares can be overridden with the comma-separated
+   * 'sps.translate.languages' system property.
+   */
+  public static synchronized TranslationWorker getWorker() {
+    if (worker == null) {
+      String languages = System.getProperty("sps.translate.languages", DEFAULT_LANGUAGES);
+      worker = new TranslationWorker(getCache(), Arrays.asList(languages.split(",")),
+                                     ServiceThreads.onAppEngine()
+                                         ? QueueFactory.getQueue(TranslationWorker.QUEUE_NAME)
+                                         : null);
+    }
+    return worker;
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Map;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * Unique visitor estimates per weekday. Each day's HyperLogLog sketch is serialized into
+ * the 'visitorSketch' property of a 'Weekdays' entity named after the day, and instances
+ * merge their local sketches into it.
+ */
+public final class UniqueVisitorCounter {
+
+  private static final int MAX_ATTEMPTS = 5;
+
+  private final DatastoreService datastore;
+
+  public UniqueVisitorCounter(DatastoreService datastore) {
+    this.datastore = datastore;
+  }
+
+  /*
+   * Merges sketch into the stored sketch of the weekday at dayIndex (Monday is 0).
+   */
+  public void merge(int dayIndex, HyperLogLog sketch) {
+    Key key = dayKey(dayIndex);
+    for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+      Transaction transaction = datastore.beginTransaction();
+      try {
+        Entity day;
+        HyperLogLog merged = new HyperLogLog();
+        try {
+          day = datastore.get(transaction, key);
+          merged = HyperLogLog.fromBytes(((Blob) day.getProperty("visitorSketch")).getBytes());
+        } catch (EntityNotFoundException e) {
+          day = new Entity(key);
+        }
+        merged.merge(sketch);
+        day.setUnindexedProperty("visitorSketch", new Blob(merged.toBytes()));
+        datastore.put(transaction, day);
+        transaction.commit();
+        return;
+      } catch (ConcurrentModificationException e) {
+        /* Another instance merged at the same time, retry on its result */
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+    throw new ConcurrentModificationException("Could not merge visitor sketch for day " + dayIndex);
+  }
+
+  /*
+   * Returns the estimated number of distinct visitors per weekday.
+   */
+  public long[] getUniqueVisitors() {
+    List<Key> keys = new ArrayList<Key>(ShardedVisitCounter.DAYS);
+    for (int day = 0; day < ShardedVisitCounter.DAYS; day++) {
+      keys.add(dayKey(day));
+    }
+    Map<Key, Entity> days = datastore.get(keys);
+    long[] uniqueVisitors = new long[ShardedVisitCounter.DAYS];
+    for (int day = 0; day < ShardedVisitCounter.DAYS; day++) {
+      Entity entity = days.get(keys.get(day));
+      if (entity != null) {
+        Blob sketch = (Blob) entity.getProperty("visitorSketch");
+        uniqueVisitors[day] = HyperLogLog.fromBytes(sketch.getBytes()).estimate();
+      }
+    }
+    return uniqueVisitors;
+  }
+
+  private static Key dayKey(int dayIndex) {
+    return KeyFactory.createKey("Weekdays", "day-" + dayIndex);
+  }
+}
@@ -0,0 +1,255 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Counts visits in memory and pushes them to the weekday totals, the minute buckets of
+ * the time series and the unique visitor sketches of the repository every
+ * flushIntervalMillis, so most visits cost no storage write. Where the instance may start
+ * a background thread, the flush runs on it and the time series is rolled up into hours
+ * and days there once a minute. Elsewhere, as on App Engine with automatic scaling, the
+ * counts are only in this instance's memory, so the flush runs on the thread of whichever
+ * visit finds it due. That visit waits for the flush's few writes, but never for another
+ * flush and never sees its errors. The roll-up, which may recompute a day of buckets, is
+ * then left to cron requests to ROLL_UP_URL, see cron.xml.
+ *
+ * At most maxUnflushedVisits visits, give or take one per concurrent request, are held in
+ * memory, and so lost if the instance crashes. While that many are waiting, because
+ * flushes keep failing, further visits are dropped rather than counted, and
+ * getDroppedVisits() says how many.
+ */
+public final class VisitAggregator {
+
+  public static final String ROLL_UP_URL = "/tasks/visits/roll-up";
+
+  private static final long MINUTE_MILLIS = VisitTimeSeries.Granularity.MINUTE.getMillis();
+
+  private final VisitRepository visits;
+  private final Runnable afterFlush;
+  private final long flushIntervalMillis;
+  private final long maxUnflushedVisits;
+  private final LongAdder[] pendingVisits = new LongAdder[ShardedVisitCounter.DAYS];
+  private final Map<Long, LongAdder> pendingMinuteVisits = new ConcurrentHashMap<Long, LongAdder>();
+  private final HyperLogLog[] pendingVisitors = new HyperLogLog[ShardedVisitCounter.DAYS];
+  private final LongAdder droppedVisits = new LongAdder();
+  private final ReentrantLock flushLock = new ReentrantLock();
+  private final ScheduledExecutorService executor;
+
+  /* Used instead of the executor: when the next flush is due */
+  private volatile long nextFlushMillis;
+  /* After a failed flush, reaching the bound waits for the next one instead of retrying */
+  private volatile boolean lastFlushFailed;
+
+  public VisitAggregator(VisitRepository visits, Runnable afterFlush,
+                         long flushIntervalMillis, long maxUnflushedVisits) {
+    this.visits = visits;
+    this.afterFlush = afterFlush;
+    this.flushIntervalMillis = flushIntervalMillis;
+    this.maxUnflushedVisits = maxUnflushedVisits;
+    for (int day = 0; day < pendingVisits.length; day++) {
+      pendingVisits[day] = new LongAdder();
+      pendingVisitors[day] = new HyperLogLog();
+    }
+    this.nextFlushMillis = System.currentTimeMillis() + flushIntervalMillis;
+    if (ServiceThreads.backgroundThreadsAllowed()) {
+      this.executor = Executors.newSingleThreadScheduledExecutor(
+          ServiceThreads.backgroundThreads("visit-flusher"));
+      executor.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis,
+                                      flushIntervalMillis, TimeUnit.MILLISECONDS);
+      executor.scheduleWithFixedDelay(this::rollUpQuietly, MINUTE_MILLIS, MINUTE_MILLIS,
+                                      TimeUnit.MILLISECONDS);
+    } else {
+      this.executor = null;
+    }
+  }
+
+  /*
+   * Counts one visit by visitorId made at timeMillis on the weekday at dayIndex (Monday is 0),
+   * unless maxUnflushedVisits visits are already waiting. Never throws.
+   */
+  public void record(int dayIndex, long timeMillis, String visitorId) {
+    if (getUnflushedVisits() >= maxUnflushedVisits) {
+      if (!lastFlushFailed || (timeMillis >= nextFlushMillis)) {
+        flushIfIdle();
+      }
+      if (getUnflushedVisits() >= maxUnflushedVisits) {
+        droppedVisits.increment();
+        return;
+      }
+    }
+    pendingVisits[dayIndex].increment();
+    synchronized (pendingVisitors) {
+      pendingVisitors[dayIndex].add(visitorId);
+    }
+    pendingMinuteVisits.computeIfAbsent(timeMillis / MINUTE_MILLIS, minute -> new LongAdder())
+        .increment();
+    if ((executor == null) && (timeMillis >= nextFlushMillis)) {
+      flushIfIdle();
+    }
+  }
+
+  public long getDroppedVisits() {
+    return droppedVisits.sum();
+  }
+
+  public long getUnflushedVisits() {
+    long unflushed = 0;
+    for (LongAdder pending : pendingVisits) {
+      unflushed += pending.sum();
+    }
+    return unflushed;
+  }
+
+  /*
+   * Pushes every pending count to the weekday totals and the time series. A count that
+   * cannot be written is put back and retried on the next flush. Runs afterFlush if any
+   * weekday total changed.
+   */
+  public void flush() {
+    flushLock.lock();
+    try {
+      flushPending();
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  /*
+   * Stops the periodic flush and writes out what is left. Called when the instance shuts down.
+   */
+  public void close() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+    flush();
+  }
+
+  private void flushPending() {
+    flushMinutes();
+    flushVisitors();
+    boolean flushed = false;
+    for (int day = 0; day < pendingVisits.length; day++) {
+      /* Subtracting what was read, rather than resetting, keeps visits counted meanwhile */
+      long delta = pendingVisits[day].sum();
+      if (delta == 0) {
+        continue;
+      }
+      pendingVisits[day].add(-delta);
+      try {
+        visits.addVisits(day, delta);
+      } catch (RuntimeException e) {
+        pendingVisits[day].add(delta);
+        throw e;
+      }
+      flushed = true;
+    }
+    if (flushed) {
+      afterFlush.run();
+    }
+  }
+
+  /* Flushes unless another thread already is, in which case that flush is enough */
+  private void flushIfIdle() {
+    if (flushLock.tryLock()) {
+      try {
+        nextFlushMillis = System.currentTimeMillis() + flushIntervalMillis;
+        flushPending();
+        lastFlushFailed = false;
+      } catch (RuntimeException e) {
+        lastFlushFailed = true;
+        System.err.println("Visit flush failed, retrying on the next one: " + e);
+      } finally {
+        flushLock.unlock();
+      }
+    }
+  }
+
+  private void flushMinutes() {
+    long currentMinute = System.currentTimeMillis() / MINUTE_MILLIS;
+    for (Map.Entry<Long, LongAdder> pendingMinute : pendingMinuteVisits.entrySet()) {
+      long delta = pendingMinute.getValue().sum();
+      if (delta != 0) {
+        pendingMinute.getValue().add(-delta);
+        try {
+          visits.addMinuteVisits(pendingMinute.getKey(), delta);
+        } catch (RuntimeException e) {
+          pendingMinute.getValue().add(delta);
+          throw e;
+        }
+      }
+      /* Visits are recorded at the current time, so older minutes get no more increments */
+      if ((pendingMinute.getKey() < currentMinute - 1) && (pendingMinute.getValue().sum() == 0)) {
+        pendingMinuteVisits.remove(pendingMinute.getKey());
+      }
+    }
+  }
+
+  private void flushVisitors() {
+    for (int day = 0; day < pendingVisitors.length; day++) {
+      HyperLogLog sketch;
+      synchronized (pendingVisitors) {
+        sketch = pendingVisitors[day];
+        if (sketch.isEmpty()) {
+          continue;
+        }
+        pendingVisitors[day] = new HyperLogLog();
+      }
+      try {
+        visits.mergeVisitors(day, sketch);
+      } catch (RuntimeException e) {
+        /* Merging is idempotent, so the unsent sketch is simply folded back in */
+        synchronized (pendingVisitors) {
+          pendingVisitors[day].merge(sketch);
+        }
+        throw e;
+      }
+    }
+  }
+
+  /*
+   * Rolls the time series up to now. Run once a minute by the background thread, or by the
+   * cron handler where there is none; throws if the roll-up fails.
+   */
+  public void rollUp() {
+    visits.rollUp(System.currentTimeMillis());
+  }
+
+  private void rollUpQuietly() {
+    try {
+      rollUp();
+    } catch (RuntimeException e) {
+      System.err.println("Visit roll-up failed, retrying on the next one: " + e);
+    }
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+      lastFlushFailed = false;
+    } catch (RuntimeException e) {
+      lastFlushFailed = true;
+      nextFlushMillis = System.currentTimeMillis() + flushIntervalMillis;
+      System.err.println("Visit flush failed, retrying on the next one: " + e);
+    }
+  }
+}
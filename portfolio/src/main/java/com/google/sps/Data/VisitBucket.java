@@ -0,0 +1,65 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.io.IOException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/** Number of visits in one minute, hour or day, starting at startMillis. */
+public final class VisitBucket {
+
+  private final long startMillis;
+  private final long visits;
+
+  public VisitBucket(long startMillis, long visits) {
+    this.startMillis = startMillis;
+    this.visits = visits;
+  }
+
+  /** Writes and reads a bucket of a /visits range query. */
+  static final class Adapter extends TypeAdapter<VisitBucket> {
+
+    @Override
+    public void write(JsonWriter writer, VisitBucket value) throws IOException {
+      writer.beginObject();
+      writer.name("startMillis").value(value.startMillis);
+      writer.name("visits").value(value.visits);
+      writer.endObject();
+    }
+
+    @Override
+    public VisitBucket read(JsonReader reader) throws IOException {
+      long startMillis = 0;
+      long visits = 0;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "startMillis":
+            startMillis = reader.nextLong();
+            break;
+          case "visits":
+            visits = reader.nextLong();
+            break;
+          default:
+            reader.skipValue();
+        }
+      }
+      reader.endObject();
+      return new VisitBucket(startMillis, visits);
+    }
+  }
+}
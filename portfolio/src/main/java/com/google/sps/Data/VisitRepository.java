@@ -0,0 +1,56 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.List;
+
+/**
+ * Storage for visit statistics: total visits and unique visitor sketches per weekday
+ * (Monday is 0), and visit counts bucketed by time.
+ */
+public interface VisitRepository {
+
+  void addVisits(int dayIndex, long delta);
+
+  /*
+   * Returns the total number of visits per weekday.
+   */
+  long[] getWeekdayTotals();
+
+  /*
+   * Merges sketch into the stored unique visitor sketch of the weekday at dayIndex.
+   */
+  void mergeVisitors(int dayIndex, HyperLogLog sketch);
+
+  /*
+   * Returns the estimated number of distinct visitors per weekday.
+   */
+  long[] getUniqueVisitors();
+
+  void addMinuteVisits(long epochMinute, long visits);
+
+  /*
+   * Brings the hour and day buckets up to nowMillis in line with the minute buckets,
+   * including any a missed or failed roll-up left behind.
+   */
+  void rollUp(long nowMillis);
+
+  /*
+   * Returns the buckets of the given width covering [fromMillis, toMillis), oldest first,
+   * including empty ones.
+   */
+  List<VisitBucket> getRange(long fromMillis, long toMillis,
+                             VisitTimeSeries.Granularity granularity);
+}
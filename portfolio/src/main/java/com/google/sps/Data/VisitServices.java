@@ -0,0 +1,75 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+
+/** Holds the visit counters shared by the visit servlet and the shutdown hook. */
+public final class VisitServices {
+
+  private static final long FLUSH_INTERVAL_MILLIS = 5000;
+  private static final long DEFAULT_MAX_UNFLUSHED_VISITS = 100;
+  private static final long HISTOGRAM_TTL_MILLIS = 10000;
+
+  private static VisitRepository repository;
+  private static WeekdayHistogram histogram;
+  private static VisitAggregator aggregator;
+
+  private VisitServices() {}
+
+  /*
+   * Returns the shared visit store, kept in process instead of in Datastore when the
+   * 'sps.storage' system property selects another comment store.
+   */
+  public static synchronized VisitRepository getRepository() {
+    if (repository == null) {
+      if (!CommentServices.usesDatastore()) {
+        repository = new EmbeddedVisitRepository();
+      } else {
+        repository = new DatastoreVisitRepository(CommentServices.timedDatastore());
+      }
+    }
+    return repository;
+  }
+
+  public static synchronized WeekdayHistogram getHistogram() {
+    if (histogram == null) {
+      histogram = new WeekdayHistogram(getRepository(), HISTOGRAM_TTL_MILLIS);
+    }
+    return histogram;
+  }
+
+  /*
+   * Returns the shared in-memory visit aggregator. The number of visits an instance crash may
+   * lose can be set with the 'sps.visits.maxUnflushed' system property.
+   */
+  public static synchronized VisitAggregator getAggregator() {
+    if (aggregator == null) {
+      long maxUnflushedVisits = Long.getLong("sps.visits.maxUnflushed",
+                                             DEFAULT_MAX_UNFLUSHED_VISITS);
+      aggregator = new VisitAggregator(getRepository(), getHistogram()::expire,
+                                       FLUSH_INTERVAL_MILLIS, maxUnflushedVisits);
+    }
+    return aggregator;
+  }
+
+  /*
+   * Flushes pending visits. Only does anything if the aggregator was ever created.
+   */
+  public static synchronized void shutdown() {
+    if (aggregator != null) {
+      aggregator.close();
+    }
+  }
+}
@@ -0,0 +1,232 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * Visit counts bucketed by time in the 'VisitBuckets' kind. Visits are added to minute
+ * buckets, and rollUp() recomputes the hour and day buckets from the buckets below them.
+ * Every bucket has a key derived from its start time, so a range query is one batch get
+ * per MAX_BATCH_GET_KEYS buckets, whose cost depends on the number of buckets asked for,
+ * not on the stored history.
+ *
+ * A 'VisitRollUps' entity holds the watermark, the first hour that may still change.
+ * rollUp() recomputes every hour from it on, up to MAX_ROLL_UP_HOURS at a time, so roll-ups
+ * missed while no instance ran are caught up. Visits added to an hour before the
+ * watermark, by a flush that was retried late, move it back.
+ */
+public final class VisitTimeSeries {
+
+  /** Width of the buckets a range is read at. */
+  public enum Granularity {
+    MINUTE(60 * 1000L), HOUR(60 * 60 * 1000L), DAY(24 * 60 * 60 * 1000L);
+
+    private final long millis;
+
+    Granularity(long millis) {
+      this.millis = millis;
+    }
+
+    public long getMillis() {
+      return millis;
+    }
+  }
+
+  private static final String KIND = "VisitBuckets";
+  private static final int MAX_ATTEMPTS = 5;
+  private static final Key WATERMARK_KEY = KeyFactory.createKey("VisitRollUps", "watermark");
+
+  /* Datastore limit on the keys of one batch get */
+  private static final int MAX_BATCH_GET_KEYS = 1000;
+  /* Hours recomputed by one roll-up, which runs once a minute, while catching up */
+  private static final int MAX_ROLL_UP_HOURS = 24;
+  private static final long MINUTES_PER_HOUR =
+      Granularity.HOUR.getMillis() / Granularity.MINUTE.getMillis();
+
+  private final DatastoreService datastore;
+
+  public VisitTimeSeries(DatastoreService datastore) {
+    this.datastore = datastore;
+  }
+
+  /*
+   * Adds visits to the bucket of the given epoch minute in a transaction.
+   */
+  public void addVisits(long epochMinute, long visits) {
+    increment(bucketKey(Granularity.MINUTE, epochMinute), visits);
+    long hour = epochMinute / MINUTES_PER_HOUR;
+    if (hour < System.currentTimeMillis() / Granularity.HOUR.getMillis() - 1) {
+      updateWatermark(hour, Long.MAX_VALUE);
+    }
+  }
+
+  /*
+   * Recomputes the hour buckets from the watermark up to the one containing nowMillis, at
+   * most MAX_ROLL_UP_HOURS of them, and the day buckets containing them. The watermark then
+   * moves to the last hour done, but never past the hour before nowMillis, which late
+   * flushes may still add to. Recomputing rather than incrementing makes repeated or
+   * concurrent roll-ups harmless.
+   */
+  public void rollUp(long nowMillis) {
+    long currentHour = nowMillis / Granularity.HOUR.getMillis();
+    long watermark = getWatermark(currentHour - 1);
+    long lastHour = Math.min(currentHour, watermark + MAX_ROLL_UP_HOURS - 1);
+    Set<Long> days = new LinkedHashSet<Long>();
+    for (long hour = watermark; hour <= lastHour; hour++) {
+      rollUpBucket(Granularity.HOUR, hour, Granularity.MINUTE);
+      days.add(hour * Granularity.HOUR.getMillis() / Granularity.DAY.getMillis());
+    }
+    for (long day : days) {
+      rollUpBucket(Granularity.DAY, day, Granularity.HOUR);
+    }
+    long nextWatermark = Math.min(lastHour + 1, currentHour - 1);
+    if (nextWatermark > watermark) {
+      updateWatermark(nextWatermark, watermark);
+    }
+  }
+
+  /*
+   * Returns the buckets of the given width covering [fromMillis, toMillis), oldest first.
+   * Buckets with no visits are included with a count of zero.
+   */
+  public List<VisitBucket> getRange(long fromMillis, long toMillis, Granularity granularity) {
+    long first = fromMillis / granularity.getMillis();
+    long last = (toMillis - 1) / granularity.getMillis();
+    List<Key> keys = new ArrayList<Key>();
+    for (long bucket = first; bucket <= last; bucket++) {
+      keys.add(bucketKey(granularity, bucket));
+    }
+    Map<Key, Entity> stored = new HashMap<Key, Entity>();
+    for (int start = 0; start < keys.size(); start += MAX_BATCH_GET_KEYS) {
+      stored.putAll(datastore.get(keys.subList(start,
+                                               Math.min(start + MAX_BATCH_GET_KEYS, keys.size()))));
+    }
+
+    List<VisitBucket> buckets = new ArrayList<VisitBucket>(keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      Entity entity = stored.get(keys.get(i));
+      long visits = (entity == null) ? 0 : (long) entity.getProperty("visits");
+      buckets.add(new VisitBucket((first + i) * granularity.getMillis(), visits));
+    }
+    return buckets;
+  }
+
+  private void rollUpBucket(Granularity granularity, long bucket, Granularity childGranularity) {
+    long childrenPerBucket = granularity.getMillis() / childGranularity.getMillis();
+    long firstChild = bucket * childrenPerBucket;
+    List<Key> childKeys = new ArrayList<Key>();
+    for (long child = firstChild; child < firstChild + childrenPerBucket; child++) {
+      childKeys.add(bucketKey(childGranularity, child));
+    }
+    long visits = 0;
+    for (Entity child : datastore.get(childKeys).values()) {
+      visits += (long) child.getProperty("visits");
+    }
+    if (visits > 0) {
+      Entity rollUp = new Entity(bucketKey(granularity, bucket));
+      rollUp.setUnindexedProperty("visits", visits);
+      datastore.put(rollUp);
+    }
+  }
+
+  /* Returns the stored watermark hour, or initialHour if no roll-up ran yet */
+  private long getWatermark(long initialHour) {
+    try {
+      return (long) datastore.get(WATERMARK_KEY).getProperty("hour");
+    } catch (EntityNotFoundException e) {
+      return initialHour;
+    }
+  }
+
+  /*
+   * Sets the watermark to hour in a transaction. A roll-up passes the watermark it started
+   * from as expectedHour, and a watermark moved back meanwhile is only raised as far as
+   * hour. Long.MAX_VALUE as expectedHour only ever lowers it.
+   */
+  private void updateWatermark(long hour, long expectedHour) {
+    for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+      Transaction transaction = datastore.beginTransaction();
+      try {
+        Entity watermark;
+        long storedHour;
+        try {
+          watermark = datastore.get(transaction, WATERMARK_KEY);
+          storedHour = (long) watermark.getProperty("hour");
+        } catch (EntityNotFoundException e) {
+          watermark = new Entity(WATERMARK_KEY);
+          storedHour = expectedHour;
+        }
+        long newHour = (storedHour == expectedHour) ? hour : Math.min(storedHour, hour);
+        if (newHour != storedHour) {
+          watermark.setUnindexedProperty("hour", newHour);
+          datastore.put(transaction, watermark);
+          transaction.commit();
+        }
+        return;
+      } catch (ConcurrentModificationException e) {
+        /* Another instance moved the watermark, retry from where it is now */
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+    throw new ConcurrentModificationException("Could not move the visit roll-up watermark");
+  }
+
+  private void increment(Key key, long delta) {
+    for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+      Transaction transaction = datastore.beginTransaction();
+      try {
+        Entity bucket;
+        try {
+          bucket = datastore.get(transaction, key);
+        } catch (EntityNotFoundException e) {
+          bucket = new Entity(key);
+          bucket.setUnindexedProperty("visits", 0L);
+        }
+        bucket.setUnindexedProperty("visits", (long) bucket.getProperty("visits") + delta);
+        datastore.put(transaction, bucket);
+        transaction.commit();
+        return;
+      } catch (ConcurrentModificationException e) {
+        /* Another instance flushed the same minute, retry on the updated count */
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+    throw new ConcurrentModificationException("Could not update visit bucket " + key.getName());
+  }
+
+  /* Bucket keys look like 'hour-482113', the bucket start in units of its width */
+  private static Key bucketKey(Granularity granularity, long bucket) {
+    return KeyFactory.createKey(KIND, granularity.name().toLowerCase() + "-" + bucket);
+  }
+}
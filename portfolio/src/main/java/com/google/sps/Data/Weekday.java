@@ -14,14 +14,59 @@
 
 package com.google.sps.data;
 
+import java.io.IOException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
 /** A day of the week, Sunday-Saturday. */
 public final class Weekday {
   
   private final String dayName;
   private final long visitCount;
+  private final long uniqueVisitors;
 
-  public Weekday(String dayName, long visitCount) {
+  public Weekday(String dayName, long visitCount, long uniqueVisitors) {
     this.dayName = dayName;
     this.visitCount = visitCount;
+    this.uniqueVisitors = uniqueVisitors;
+  }
+
+  /** Writes and reads a day's totals for /visits field by field. */
+  static final class Adapter extends TypeAdapter<Weekday> {
+
+    @Override
+    public void write(JsonWriter writer, Weekday value) throws IOException {
+      writer.beginObject();
+      writer.name("dayName").value(value.dayName);
+      writer.name("visitCount").value(value.visitCount);
+      writer.name("uniqueVisitors").value(value.uniqueVisitors);
+      writer.endObject();
+    }
+
+    @Override
+    public Weekday read(JsonReader reader) throws IOException {
+      String dayName = null;
+      long visitCount = 0;
+      long uniqueVisitors = 0;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "dayName":
+            dayName = JsonServices.nextStringOrNull(reader);
+            break;
+          case "visitCount":
+            visitCount = reader.nextLong();
+            break;
+          case "uniqueVisitors":
+            uniqueVisitors = reader.nextLong();
+            break;
+          default:
+            reader.skipValue();
+        }
+      }
+      reader.endObject();
+      return new Weekday(dayName, visitCount, uniqueVisitors);
+    }
   }
 }
@@ -0,0 +1,129 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Cached weekday visit histogram for /visits. The totals are read from storage at most
+ * once per TTL, or sooner after this instance flushes visits, and kept as primitive arrays
+ * together with the serialized JSON and its ETag, so serving the histogram allocates
+ * nothing per request.
+ */
+public final class WeekdayHistogram {
+
+  private static final String[] DAY_NAMES =
+      {"Monday", "Tuesday", "Wednesday", "Thursday", "Friday", "Saturday", "Sunday"};
+
+  private final VisitRepository visits;
+  private final long ttlMillis;
+  private final ReentrantLock refreshLock = new ReentrantLock();
+
+  private volatile Snapshot snapshot;
+
+  public WeekdayHistogram(VisitRepository visits, long ttlMillis) {
+    this.visits = visits;
+    this.ttlMillis = ttlMillis;
+  }
+
+  /*
+   * Returns the current snapshot, refreshing it first if it has expired. While one thread
+   * refreshes, the others keep serving the expired snapshot instead of waiting.
+   */
+  public Snapshot get() {
+    Snapshot current = snapshot;
+    if ((current != null) && (current.expiresAtMillis > System.currentTimeMillis())) {
+      return current;
+    }
+    if ((current != null) && !refreshLock.tryLock()) {
+      return current;
+    }
+    if (current == null) {
+      refreshLock.lock();
+    }
+    try {
+      if (snapshot == current) {
+        snapshot = load();
+      }
+      return snapshot;
+    } finally {
+      refreshLock.unlock();
+    }
+  }
+
+  /*
+   * Makes the next get() reload the totals. Called after visits are flushed.
+   */
+  public void expire() {
+    Snapshot current = snapshot;
+    if (current != null) {
+      snapshot = new Snapshot(current.visits, current.uniqueVisitors, current.json,
+                              current.etag, 0);
+    }
+  }
+
+  private Snapshot load() {
+    long[] totals = visits.getWeekdayTotals();
+    long[] uniqueVisitors = visits.getUniqueVisitors();
+    ArrayList<Weekday> dailyVisits = new ArrayList<Weekday>(DAY_NAMES.length);
+    for (int i = 0; i < DAY_NAMES.length; i++) {
+      dailyVisits.add(new Weekday(DAY_NAMES[i], totals[i], uniqueVisitors[i]));
+    }
+    byte[] json = JsonServices.getGson().toJson(dailyVisits).getBytes(StandardCharsets.UTF_8);
+    CRC32 crc = new CRC32();
+    crc.update(json);
+    String etag = "\"" + Long.toHexString(crc.getValue()) + "\"";
+    return new Snapshot(totals, uniqueVisitors, json, etag,
+                        System.currentTimeMillis() + ttlMillis);
+  }
+
+  /** Immutable histogram contents and their serialized form. */
+  public static final class Snapshot {
+    private final long[] visits;
+    private final long[] uniqueVisitors;
+    private final byte[] json;
+    private final String etag;
+    private final long expiresAtMillis;
+
+    private Snapshot(long[] visits, long[] uniqueVisitors, byte[] json, String etag,
+                     long expiresAtMillis) {
+      this.visits = visits;
+      this.uniqueVisitors = uniqueVisitors;
+      this.json = json;
+      this.etag = etag;
+      this.expiresAtMillis = expiresAtMillis;
+    }
+
+    public long getVisits(int dayIndex) {
+      return visits[dayIndex];
+    }
+
+    public long getUniqueVisitors(int dayIndex) {
+      return uniqueVisitors[dayIndex];
+    }
+
+    /* Shared array, callers must not modify it */
+    public byte[] getJson() {
+      return json;
+    }
+
+    public String getEtag() {
+      return etag;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+import com.google.sps.data.CommentServices;
+import com.google.sps.data.JsonServices;
+import com.google.sps.data.StartupMetrics;
+import com.google.sps.data.Translators;
+import com.google.sps.data.VisitServices;
+
+/**
+ * Builds the shared clients and caches when the instance starts, so the first request does
+ * not pay for them, and flushes buffered work when the instance shuts down.
+ */
+@WebListener
+public class AppContextListener implements ServletContextListener {
+
+  private static final long SHUTDOWN_TIMEOUT_MILLIS = 5000;
+
+  @Override
+  public void contextInitialized(ServletContextEvent event) {
+    long startMillis = System.currentTimeMillis();
+    try {
+      Translators.getCache();
+      Translators.getWorker();
+      CommentServices.getPageLoader();
+      CommentServices.getPrefetchCache();
+      CommentServices.getPageExecutor();
+      CommentServices.getWriter();
+      CommentServices.getPurgeJob();
+      VisitServices.getAggregator();
+      JsonServices.getGson();
+      CommentServices.startMigrations();
+    } catch (RuntimeException e) {
+      /* Whatever failed is built again on first use */
+      System.err.println("Could not initialize services at startup: " + e);
+    }
+    StartupMetrics.recordInitialization(System.currentTimeMillis() - startMillis);
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent event) {
+    CommentServices.shutdown(SHUTDOWN_TIMEOUT_MILLIS);
+    VisitServices.shutdown();
+  }
+}
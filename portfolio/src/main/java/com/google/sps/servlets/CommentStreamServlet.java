@@ -0,0 +1,62 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.io.IOException;
+import javax.servlet.AsyncContext;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import com.google.sps.data.CommentFeed;
+import com.google.sps.data.CommentServices;
+
+/**
+ * Servlet that streams newly posted comments to the client as Server-Sent Events. Answers
+ * 404 unless the stream is enabled, and /data tells clients whether it is.
+ */
+@WebServlet(urlPatterns = "/data/stream", asyncSupported = true)
+public class CommentStreamServlet extends HttpServlet {
+
+  /* Clients reconnect on their own, so connections are recycled every few minutes */
+  private static final long STREAM_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+  private CommentFeed feed;
+
+  @Override
+  public void init() {
+    if (CommentServices.isStreamEnabled()) {
+      feed = CommentServices.getFeed();
+    }
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (feed == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    response.setContentType("text/event-stream");
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+
+    AsyncContext asyncContext = request.startAsync();
+    asyncContext.setTimeout(STREAM_TIMEOUT_MILLIS);
+    if (!feed.subscribe(asyncContext)) {
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many open streams");
+      asyncContext.complete();
+    }
+  }
+}
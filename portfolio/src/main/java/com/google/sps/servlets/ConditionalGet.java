@@ -0,0 +1,67 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Conditional GET support for the JSON servlets. A servlet passes the ETag of what it
+ * would send, derived from a cheap version stamp, before doing any work for the response;
+ * a client that already holds that version gets an empty 304 instead.
+ */
+final class ConditionalGet {
+
+  private ConditionalGet() {}
+
+  /*
+   * Sets the ETag header and returns true, after answering 304 Not Modified, if the
+   * request's If-None-Match already names it. Clients are told to revalidate every time,
+   * which costs them a 304 rather than a full response while nothing changes.
+   */
+  static boolean isNotModified(HttpServletRequest request, HttpServletResponse response,
+                               String etag) {
+    response.setHeader("ETag", etag);
+    response.setHeader("Cache-Control", "no-cache");
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if ((ifNoneMatch == null) || !matches(ifNoneMatch, etag)) {
+      return false;
+    }
+    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    return true;
+  }
+
+  /* Strong ETag for a version number */
+  static String etagOf(long version) {
+    return "\"" + Long.toHexString(version) + "\"";
+  }
+
+  /*
+   * If-None-Match is '*' or a comma-separated list of ETags, compared ignoring the weak
+   * prefix as RFC 7232 asks for GET.
+   */
+  private static boolean matches(String ifNoneMatch, String etag) {
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals("*") || candidate.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
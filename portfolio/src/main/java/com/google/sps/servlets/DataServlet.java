@@ -15,35 +15,63 @@
 package com.google.sps.servlets;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.ArrayList;
-import com.google.gson.Gson;
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
-import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.PreparedQuery;
-import com.google.appengine.api.datastore.Query;
-import com.google.appengine.api.datastore.Query.SortDirection;
-import com.google.appengine.api.datastore.QueryResultList;
-import com.google.appengine.api.datastore.Cursor;
-import com.google.appengine.api.datastore.FetchOptions;
-import com.google.sps.data.Message;
-import com.google.cloud.translate.Translate;
-import com.google.cloud.translate.TranslateOptions;
-import com.google.cloud.translate.Translation;
+import com.google.sps.data.CommentPage;
+import com.google.sps.data.CommentPageCache;
+import com.google.sps.data.CommentPageLoader;
+import com.google.sps.data.CommentServices;
+import com.google.sps.data.CommentWriter;
+import com.google.sps.data.MessageJson;
+import com.google.sps.data.PrefetchCache;
+import com.google.sps.data.LanguageDetector;
+import com.google.sps.data.RepositoryPage;
+import com.google.sps.data.StoredMessage;
+import com.google.sps.data.Translators;
 
 /** Servlet that returns some example content. */
-@WebServlet("/data")
+@WebServlet(urlPatterns = "/data", asyncSupported = true)
 public class DataServlet extends HttpServlet {
 
-  public int maxComments;
+  /* Pages of the default size are the ones the page cache keeps */
+  static final int DEFAULT_PAGE_SIZE = CommentPageCache.PAGE_SIZE;
+  private static final int MAX_PAGE_SIZE = 100;
+  private static final long ASYNC_TIMEOUT_MILLIS = 30000;
+  /* Tells clients where new comments are pushed, when the stream is enabled */
+  private static final String STREAM_HEADER = "Comment-Stream";
+  private static final String STREAM_URL = "/data/stream";
+
+  private CommentPageLoader pageLoader;
+  private LanguageDetector languageDetector;
+  private CommentPageCache pageCache;
+  private PrefetchCache prefetchCache;
+  private CommentWriter commentWriter;
+  private ExecutorService pageExecutor;
+  private boolean streamEnabled;
+
+  @Override
+  public void init() {
+    pageLoader = CommentServices.getPageLoader();
+    languageDetector = Translators.getDetector();
+    pageCache = CommentServices.getPageCache();
+    prefetchCache = CommentServices.getPrefetchCache();
+    commentWriter = CommentServices.getWriter();
+    pageExecutor = CommentServices.getPageExecutor();
+    streamEnabled = CommentServices.isStreamEnabled();
+  }
 
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    FetchOptions fetchOptions = FetchOptions.Builder.withLimit(5);
+    int pageSize = getPageSize(request);
     String startCursor = request.getParameter("scrs");
 
     String languageCode = "en"; /* Sets default language code as english */
@@ -51,60 +79,237 @@ public class DataServlet extends HttpServlet {
       languageCode = request.getParameter("lan");
     }
 
-    if ((startCursor != null) && (!startCursor.equals("none"))) { //if the given cursor is 'none' no cursor is necessary
-      fetchOptions.startCursor(Cursor.fromWebSafeString(startCursor));
+    if (startCursor == null) {
+      startCursor = CommentPageCache.FIRST_PAGE_CURSOR;
+    }
+    if (streamEnabled) {
+      response.setHeader(STREAM_HEADER, STREAM_URL);
+    }
+
+    /* Every write bumps the version, so a client holding a page of this version has
+     * the current one. Read before loading, as a write racing the load must change it */
+    long pageVersion = pageCache.currentVersion();
+    if (CommentPageCache.isKnownVersion(pageVersion)
+        && ConditionalGet.isNotModified(request, response, ConditionalGet.etagOf(pageVersion))) {
+      return;
+    }
+
+    /* Most requests are for the newest pages, which are served from memory until a write */
+    CommentPage page = pageCache.get(languageCode, pageSize, startCursor, pageVersion);
+    if (page == null) {
+      page = prefetchCache.take(languageCode, pageSize, startCursor, pageVersion);
+    }
+    if (page != null) {
+      pageCache.put(languageCode, pageSize, startCursor, pageVersion, page);
+      writePage(response, page);
+      prefetchNext(languageCode, pageSize, page.getEndCursor(), page.getMessageCount(),
+                   pageVersion);
+      return;
+    }
+
+    if (pageExecutor == null) {
+      /* On App Engine only request threads may call Datastore and Translate, so a miss
+       * is loaded on this one */
+      loadAndRespond(response, languageCode, pageSize, startCursor, pageVersion);
+      return;
     }
-    Query query = new Query("Messages").addSort("timestampMillis", SortDirection.DESCENDING);
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    PreparedQuery prepQuery = datastore.prepare(query);
-    
-    QueryResultList<Entity> results = prepQuery.asQueryResultList(fetchOptions);
 
-    Cursor endCursor = results.getCursor();
-    String encodedEndCursor = endCursor.toWebSafeString();
+    /* A miss waits on Datastore and Translate. The request thread is handed back to the
+     * container meanwhile, and the response is written by the page load executor */
+    AsyncContext asyncContext = request.startAsync();
+    asyncContext.setTimeout(ASYNC_TIMEOUT_MILLIS);
+    AtomicBoolean responded = new AtomicBoolean();
+    asyncContext.addListener(new AsyncListener() {
+      @Override
+      public void onTimeout(AsyncEvent event) throws IOException {
+        if (responded.compareAndSet(false, true)) {
+          try {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Comments timed out");
+          } finally {
+            asyncContext.complete();
+          }
+        }
+      }
+
+      @Override
+      public void onComplete(AsyncEvent event) {}
+
+      @Override
+      public void onError(AsyncEvent event) {}
+
+      @Override
+      public void onStartAsync(AsyncEvent event) {}
+    });
+
+    String pageLanguageCode = languageCode;
+    String pageStartCursor = startCursor;
+    try {
+      CompletableFuture
+          .supplyAsync(() -> pageLoader.readPage(pageSize, pageStartCursor), pageExecutor)
+          .thenApply(storedPage -> pageLoader.translatePage(storedPage, pageLanguageCode))
+          .whenComplete((translated, error) -> {
+            if (responded.compareAndSet(false, true)) {
+              try {
+                respond(response, translated, error, pageLanguageCode, pageSize,
+                        pageStartCursor, pageVersion);
+              } finally {
+                asyncContext.complete();
+              }
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      /* Every page load thread is busy and the queue is full, so this thread does the work */
+      if (responded.compareAndSet(false, true)) {
+        try {
+          loadAndRespond(response, languageCode, pageSize, startCursor, pageVersion);
+        } finally {
+          asyncContext.complete();
+        }
+      }
+    }
+  }
+
+  private void loadAndRespond(HttpServletResponse response, String languageCode,
+                              int pageSize, String startCursor, long pageVersion) {
+    RepositoryPage<StoredMessage> translated = null;
+    Throwable error = null;
+    try {
+      translated = pageLoader.translatePage(pageLoader.readPage(pageSize, startCursor),
+                                            languageCode);
+    } catch (RuntimeException loadError) {
+      error = loadError;
+    }
+    respond(response, translated, error, languageCode, pageSize, startCursor, pageVersion);
+  }
 
-    ArrayList<Message> messages = new ArrayList<Message>();
+  /*
+   * Writes a freshly loaded page, or a server error if loading it failed, then starts
+   * prefetching the page after it. Never throws, so callers can always complete the
+   * request afterwards.
+   */
+  private void respond(HttpServletResponse response, RepositoryPage<StoredMessage> translated,
+                       Throwable error, String languageCode, int pageSize, String startCursor,
+                       long pageVersion) {
+    try {
+      if ((error != null) || (translated == null)) {
+        System.err.println("Could not load comments: " + error);
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        return;
+      }
+      if (pageCache.accepts(languageCode, pageSize, startCursor, pageVersion)) {
+        CommentPage page = CommentPageLoader.serialize(translated);
+        pageCache.put(languageCode, pageSize, startCursor, pageVersion, page);
+        writePage(response, page);
+      } else {
+        /* Pages the cache would not keep are written out as they are serialized */
+        setJsonHeaders(response, translated.getEndCursor());
+        MessageJson.writeArray(translated.getItems(), response.getOutputStream());
+      }
+    } catch (IOException e) {
+      System.err.println("Could not send comments: " + e);
+      return;
+    } catch (RuntimeException e) {
+      System.err.println("Could not send comments: " + e);
+      sendErrorQuietly(response);
+      return;
+    }
+    try {
+      prefetchNext(languageCode, pageSize, translated.getEndCursor(),
+                   translated.getItems().size(), pageVersion);
+    } catch (RuntimeException e) {
+      System.err.println("Could not start prefetching comments: " + e);
+    }
+  }
 
-    Translate translate = TranslateOptions.getDefaultInstance().getService();
+  /* Answers 500 unless part of the response was already sent */
+  private static void sendErrorQuietly(HttpServletResponse response) {
+    if (!response.isCommitted()) {
+      try {
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      } catch (IOException | IllegalStateException e) {
+        /* The client is gone or the response was committed meanwhile */
+      }
+    }
+  }
 
-    for (Entity entity : results) {
-      Translation translation = translate.translate((String) entity.getProperty("text"),
-                                                  Translate.TranslateOption.targetLanguage(languageCode));
-      String translatedText = translation.getTranslatedText();
-      Message msg = new Message((String) entity.getProperty("username"),
-                                translatedText,
-                                (long) entity.getProperty("timestampMillis"));
-      messages.add(msg);
+  /*
+   * Clients nearly always ask for the next page, so it is loaded while they read this one.
+   * A short page is the last one and has nothing after it.
+   */
+  private void prefetchNext(String languageCode, int pageSize, String endCursor,
+                            int messageCount, long pageVersion) {
+    if ((messageCount == pageSize)
+        && (pageCache.get(languageCode, pageSize, endCursor, pageVersion) == null)) {
+      prefetchCache.prefetch(languageCode, pageSize, endCursor, pageVersion,
+                             () -> pageLoader.loadPage(languageCode, pageSize, endCursor));
     }
+  }
+
+  private static void writePage(HttpServletResponse response, CommentPage page)
+      throws IOException {
+    setJsonHeaders(response, page.getEndCursor());
+    response.setContentLength(page.getJson().length);
+    response.getOutputStream().write(page.getJson());
+  }
 
-    Gson gson = new Gson();
+  /*
+   * The Cursor header has to be set before any of the body is written, which may commit
+   * the response.
+   */
+  private static void setJsonHeaders(HttpServletResponse response, String endCursor) {
     response.setContentType("application/json;");
-    response.getWriter().println(gson.toJson(messages));
-    response.addHeader("Cursor", encodedEndCursor);
+    response.setCharacterEncoding("UTF-8");
+    response.addHeader("Cursor", endCursor);
   }
 
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
     String text = request.getParameter("text-input");
     String username = request.getParameter("username");
     long timestampMillis = System.currentTimeMillis();
-    String maxCommentsString = request.getParameter("max-comments");
-    try {
-      maxComments = Integer.parseInt(maxCommentsString);
-    } catch (NumberFormatException e) {
-      System.err.println("Could not convert to int: " + maxCommentsString);
-      maxComments = Integer.MAX_VALUE; //displays all comments if user does not enter valid number
-    }
     if ((username == null) || (username.isEmpty())) {
       username = "Anon";
     }
     if ((text != null) && !(text.isEmpty())) {
-      Entity messageEntity = new Entity("Messages");
-      messageEntity.setProperty("text", text);
-      messageEntity.setProperty("username", username);
-      messageEntity.setProperty("timestampMillis", timestampMillis);
-      DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-      datastore.put(messageEntity);
+      /* write() returns once the comment is stored, so a failure is still the poster's */
+      try {
+        commentWriter.write(new StoredMessage(0, username, text, timestampMillis,
+                                              detectLanguage(text)));
+      } catch (RuntimeException e) {
+        System.err.println("Could not store comment: " + e);
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                           "Your comment could not be saved, please try again");
+        return;
+      }
     }
     response.sendRedirect("/index.html");
   }
+
+  /*
+   * Reads the 'size' parameter, clamped to [1, MAX_PAGE_SIZE]. Defaults to DEFAULT_PAGE_SIZE.
+   */
+  private static int getPageSize(HttpServletRequest request) {
+    String sizeString = request.getParameter("size");
+    if (sizeString == null) {
+      return DEFAULT_PAGE_SIZE;
+    }
+    try {
+      return Math.max(1, Math.min(MAX_PAGE_SIZE, Integer.parseInt(sizeString)));
+    } catch (NumberFormatException e) {
+      return DEFAULT_PAGE_SIZE;
+    }
+  }
+
+  /*
+   * Detects the language of a new comment once, so reads can skip translating it into the
+   * language it was written in. Returns null if detection fails; the comment is then
+   * translated on read like any other.
+   */
+  private String detectLanguage(String text) {
+    try {
+      return languageDetector.detectLanguage(text);
+    } catch (RuntimeException e) {
+      System.err.println("Could not detect comment language: " + e);
+      return null;
+    }
+  }
 }
@@ -19,26 +19,23 @@ import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.*;
-import java.util.ArrayList;
-import java.util.Arrays;
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
-import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.PreparedQuery;
-import com.google.appengine.api.datastore.Query;
+import com.google.gson.Gson;
+import com.google.sps.data.CommentServices;
+import com.google.sps.data.JsonServices;
+import com.google.sps.data.PurgeStatus;
 
-/** Servlet that deletes all entities of the 'Messages' query. */
+/**
+ * Servlet that starts deleting all entities of the 'Messages' query in the background.
+ * Responds with the purge status; progress can be followed at /delete-data/status.
+ */
 @WebServlet("/delete-data")
 public class DeleteCommentsServlet extends HttpServlet {
 
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    Query query = new Query("Messages");
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    PreparedQuery results = datastore.prepare(query);
-    for (Entity entity : results.asIterable()) {
-      datastore.delete(entity.getKey());
-    }
+    PurgeStatus status = CommentServices.getPurgeJob().start();
+    Gson gson = JsonServices.getGson();
+    response.setStatus(HttpServletResponse.SC_ACCEPTED);
+    response.setContentType("application/json;");
+    gson.toJson(status, response.getWriter());
   }
 }
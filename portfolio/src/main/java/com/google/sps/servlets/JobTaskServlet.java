@@ -0,0 +1,51 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import com.google.sps.data.CommentServices;
+import com.google.sps.data.JobChain;
+
+/**
+ * Push task handler that runs one step of a chained job and enqueues the step after it.
+ * A failed step answers 500, so the 'jobs' queue retries it with backoff.
+ */
+@WebServlet(JobChain.TASK_URL)
+public class JobTaskServlet extends HttpServlet {
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    /* App Engine strips this header from outside requests, so only the queue can call this */
+    if (request.getHeader("X-AppEngine-QueueName") == null) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+    JobChain chain = CommentServices.getJob(request.getParameter("job"));
+    String runId = request.getParameter("run");
+    String step = request.getParameter("step");
+    if ((chain == null) || (runId == null) || (step == null)) {
+      /* Retrying a task for an unknown job cannot help, so it is acknowledged and dropped */
+      System.err.println("Dropping task for unknown job " + request.getParameter("job"));
+      return;
+    }
+    String retryCount = request.getHeader("X-AppEngine-TaskRetryCount");
+    chain.runTask(runId, Integer.parseInt(step), request.getParameter("cursor"),
+                  (retryCount == null) ? 0 : Integer.parseInt(retryCount));
+  }
+}
@@ -0,0 +1,107 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import com.google.sps.data.LatencyHistogram;
+import com.google.sps.data.Metrics;
+
+/**
+ * Records the latency of every request in a histogram per servlet path. Requests that go
+ * asynchronous are timed until their response completes: the request is wrapped so the
+ * timing listener is added as soon as the servlet starts async mode, before any other
+ * thread can complete it. Comment streams stay open for minutes by design and are left
+ * out, as they would swamp the quantiles of every other route.
+ */
+@WebFilter(urlPatterns = "/*", asyncSupported = true)
+public class MetricsFilter implements Filter {
+
+  private static final String STREAM_PATH = "/data/stream";
+
+  @Override
+  public void init(FilterConfig filterConfig) {}
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    if (STREAM_PATH.equals(httpRequest.getServletPath())) {
+      chain.doFilter(request, response);
+      return;
+    }
+    long startNanos = System.nanoTime();
+    LatencyHistogram histogram = Metrics.histogram(Metrics.REQUEST_LATENCY,
+                                                   httpRequest.getServletPath());
+    AtomicBoolean asyncStarted = new AtomicBoolean();
+    AsyncListener listener = new AsyncListener() {
+      @Override
+      public void onComplete(AsyncEvent event) {
+        histogram.recordNanos(System.nanoTime() - startNanos);
+      }
+
+      @Override
+      public void onTimeout(AsyncEvent event) {}
+
+      @Override
+      public void onError(AsyncEvent event) {}
+
+      @Override
+      public void onStartAsync(AsyncEvent event) {}
+    };
+    HttpServletRequest timedRequest = new HttpServletRequestWrapper(httpRequest) {
+      @Override
+      public AsyncContext startAsync() {
+        return timed(super.startAsync());
+      }
+
+      @Override
+      public AsyncContext startAsync(ServletRequest servletRequest,
+                                     ServletResponse servletResponse) {
+        return timed(super.startAsync(servletRequest, servletResponse));
+      }
+
+      private AsyncContext timed(AsyncContext asyncContext) {
+        if (asyncStarted.compareAndSet(false, true)) {
+          asyncContext.addListener(listener);
+        }
+        return asyncContext;
+      }
+    };
+    try {
+      chain.doFilter(timedRequest, response);
+    } finally {
+      /* Not isAsyncStarted(), which turns false again once another thread completes */
+      if (!asyncStarted.get()) {
+        histogram.recordNanos(System.nanoTime() - startNanos);
+      }
+    }
+  }
+
+  @Override
+  public void destroy() {}
+}
@@ -0,0 +1,50 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import com.google.gson.Gson;
+import com.google.sps.data.CommentServices;
+import com.google.sps.data.JsonServices;
+import com.google.sps.data.PrefetchCache;
+
+/**
+ * Servlet that reports how often requested comment pages had already been prefetched. Only
+ * pages that were to be prefetched count, and 'enabled' is false where prefetching is off.
+ */
+@WebServlet("/prefetch-stats")
+public class PrefetchStatsServlet extends HttpServlet {
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    PrefetchCache cache = CommentServices.getPrefetchCache();
+    LinkedHashMap<String, Object> stats = new LinkedHashMap<String, Object>();
+    long requests = cache.getHits() + cache.getMisses();
+    stats.put("enabled", cache.isEnabled());
+    stats.put("hits", cache.getHits());
+    stats.put("misses", cache.getMisses());
+    stats.put("hitRate", (requests > 0) ? (double) cache.getHits() / requests : 0.0);
+    stats.put("skipped", cache.getSkipped());
+
+    Gson gson = JsonServices.getGson();
+    response.setContentType("application/json;");
+    gson.toJson(stats, response.getWriter());
+  }
+}
@@ -0,0 +1,67 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.io.IOException;
+import java.util.List;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import com.google.gson.Gson;
+import com.google.sps.data.CommentIndex;
+import com.google.sps.data.CommentServices;
+import com.google.sps.data.JsonServices;
+import com.google.sps.data.Message;
+
+/** Servlet that searches comment text, best matches first. */
+@WebServlet("/search")
+public class SearchServlet extends HttpServlet {
+
+  private static final int DEFAULT_LIMIT = 20;
+  private static final int MAX_LIMIT = 100;
+
+  private CommentIndex index;
+
+  @Override
+  public void init() {
+    index = CommentServices.getIndex();
+  }
+
+  /*
+   * Sends back the comments matching the 'q' parameter as Json objects, at most 'limit' of them
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String query = request.getParameter("q");
+    if ((query == null) || query.trim().isEmpty()) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing search query 'q'");
+      return;
+    }
+    int limit = DEFAULT_LIMIT;
+    try {
+      if (request.getParameter("limit") != null) {
+        limit = Math.max(1, Math.min(MAX_LIMIT, Integer.parseInt(request.getParameter("limit"))));
+      }
+    } catch (NumberFormatException e) {
+      limit = DEFAULT_LIMIT;
+    }
+
+    List<Message> results = index.search(query, limit);
+    Gson gson = JsonServices.getGson();
+    response.setContentType("application/json;");
+    gson.toJson(results, response.getWriter());
+  }
+}
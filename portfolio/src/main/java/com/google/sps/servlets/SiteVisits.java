@@ -15,103 +15,127 @@
 package com.google.sps.servlets;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
 import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
-import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.PreparedQuery;
-import com.google.appengine.api.datastore.Query;
-import com.google.appengine.api.datastore.Query.Filter;
-import com.google.appengine.api.datastore.Query.FilterOperator;
-import com.google.appengine.api.datastore.Query.FilterPredicate;
-import com.google.appengine.api.datastore.KeyFactory;
-import com.google.appengine.api.datastore.Query.SortDirection;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.time.LocalDate;  
 import java.time.DayOfWeek;
 import com.google.gson.Gson;
-import com.google.sps.data.Weekday;
+import com.google.sps.data.JsonServices;
+import com.google.sps.data.VisitAggregator;
+import com.google.sps.data.VisitRepository;
+import com.google.sps.data.VisitServices;
+import com.google.sps.data.VisitTimeSeries;
+import com.google.sps.data.WeekdayHistogram;
 
 /** Servlet that handles updating and requesting site viewcount data. */
 @WebServlet("/visits")
 public class SiteVisits extends HttpServlet {
 
-  /*
-   * Gets all weekday entries from datastore and sends back as Json objects
-   */
-  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    Query query = new Query("Weekdays").addSort("index", SortDirection.ASCENDING);;
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    PreparedQuery prepQuery = datastore.prepare(query);
+  /* Largest number of buckets a single range query may ask for */
+  private static final long MAX_RANGE_BUCKETS = 1500;
 
-    ArrayList<Weekday> dailyVisits = new ArrayList<Weekday>();
+  private static final String VISITOR_COOKIE = "visitorId";
+  private static final int VISITOR_COOKIE_MAX_AGE_SECONDS = 365 * 24 * 60 * 60;
 
-    /* Datastore entities are stored with indices, this maps day names to each index */
-    HashMap<Long, String> indexToWeekday = new HashMap<Long, String>();
-    
-    indexToWeekday.put(new Long(0), "Monday");
-    indexToWeekday.put(new Long(1), "Tuesday");
-    indexToWeekday.put(new Long(2), "Wednesday");
-    indexToWeekday.put(new Long(3), "Thursday");
-    indexToWeekday.put(new Long(4), "Friday");
-    indexToWeekday.put(new Long(5), "Saturday");
-    indexToWeekday.put(new Long(6), "Sunday");
+  private VisitAggregator visitAggregator;
+  private VisitRepository visitRepository;
+  private WeekdayHistogram weekdayHistogram;
 
-    HashMap<Long, Long> dayOfWeekToCount = new HashMap<Long, Long>();
-    for (Entity entity : prepQuery.asIterable()) {
-      if ((entity == null) || (entity.getProperty("index") == null)) {
-      } else {
-        long day = (long) entity.getProperty("index");
-        long count = (long) entity.getProperty("visits");
-        dayOfWeekToCount.put(day, count);
-      }
+  @Override
+  public void init() {
+    visitAggregator = VisitServices.getAggregator();
+    visitRepository = VisitServices.getRepository();
+    weekdayHistogram = VisitServices.getHistogram();
+  }
+
+  /*
+   * Sends back the visit totals of every weekday as Json objects. With 'from' and
+   * 'to' parameters (epoch millis) sends back the visits in that range instead
+   */
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if ((request.getParameter("from") != null) || (request.getParameter("to") != null)) {
+      doGetRange(request, response);
+      return;
     }
-    for (long i = 0; i < 7; i++) {
-      dailyVisits.add(new Weekday(indexToWeekday.get(i), dayOfWeekToCount.getOrDefault(i, new Long(0))));
+    /* The histogram and its JSON are cached, so a reload is a 304 or a copy of the bytes */
+    WeekdayHistogram.Snapshot histogram = weekdayHistogram.get();
+    if (ConditionalGet.isNotModified(request, response, histogram.getEtag())) {
+      return;
     }
-    Gson gson = new Gson();
     response.setContentType("application/json;");
-    response.getWriter().println(gson.toJson(dailyVisits));
+    response.setContentLength(histogram.getJson().length);
+    response.getOutputStream().write(histogram.getJson());
   }
 
   /* 
-   * Increments number of visits for current day of the week by 1
+   * Increments number of visits for current day of the week by 1. The visit is counted in
+   * memory and reaches the sharded counter with the next periodic flush
    */
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
     LocalDate date = LocalDate.now();
     DayOfWeek dayObject = date.getDayOfWeek();
+    visitAggregator.record(dayObject.getValue() - 1, System.currentTimeMillis(),
+                           getVisitorId(request, response));
+  }
 
-    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
-    Filter propertyFilter = new FilterPredicate("index", FilterOperator.EQUAL, dayObject.getValue() - 1);
-    Query query = new Query("Weekdays").setFilter(propertyFilter);
-    PreparedQuery prepQuery = datastore.prepare(query);
-    
-    /* Entities of kind 'Weekdays' have 2 properties; an integer # of visits, 
-     * and an index (Monday is 0, etc.) */
-    boolean entityFound = false;
-    Entity currentDay = new Entity("Weekdays");
-    for (Entity entity : prepQuery.asIterable()) {
-      long totalViews = 0;
-      if ((entity.getProperty("visits") != null)) { //ensures 'entity' is correct one
-        totalViews = (long) entity.getProperty("visits");
-        currentDay = entity;
-        currentDay.setProperty("visits", totalViews + 1);
-        entityFound = true;
+  /*
+   * Identifies the visitor by a long-lived cookie. New visitors get an id derived from their
+   * address and user agent, so clients that drop cookies, like most bots, keep the same id
+   */
+  private static String getVisitorId(HttpServletRequest request, HttpServletResponse response) {
+    if (request.getCookies() != null) {
+      for (Cookie cookie : request.getCookies()) {
+        if (cookie.getName().equals(VISITOR_COOKIE)) {
+          return cookie.getValue();
+        }
       }
-      break; /* Only one entity should be queried, this ensures only one is looked at */
     }
+    String fingerprint = request.getRemoteAddr() + "|" + request.getHeader("User-Agent");
+    String visitorId =
+        UUID.nameUUIDFromBytes(fingerprint.getBytes(StandardCharsets.UTF_8)).toString();
+    Cookie cookie = new Cookie(VISITOR_COOKIE, visitorId);
+    cookie.setMaxAge(VISITOR_COOKIE_MAX_AGE_SECONDS);
+    cookie.setPath("/");
+    cookie.setHttpOnly(true);
+    response.addCookie(cookie);
+    return visitorId;
+  }
 
-    if (!entityFound) {
-      int index = dayObject.getValue() - 1;
-      /* Assigns all relevant fields to currentDay entity */
-      currentDay.setProperty("visits", 1);
-      currentDay.setProperty("index", index);
+  /*
+   * Sends back the precomputed visit buckets covering [from, to) at the requested
+   * 'granularity' (minute, hour or day, hour by default), oldest first
+   */
+  private void doGetRange(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    long from;
+    long to;
+    VisitTimeSeries.Granularity granularity;
+    try {
+      from = Long.parseLong(request.getParameter("from"));
+      to = Long.parseLong(request.getParameter("to"));
+      String granularityString = request.getParameter("granularity");
+      granularity = (granularityString == null) ? VisitTimeSeries.Granularity.HOUR
+          : VisitTimeSeries.Granularity.valueOf(granularityString.toUpperCase());
+    } catch (IllegalArgumentException | NullPointerException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                         "Expected numeric 'from' and 'to' and granularity minute, hour or day");
+      return;
+    }
+    if ((from < 0) || (to <= from)
+        || ((to - from) / granularity.getMillis() >= MAX_RANGE_BUCKETS)) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                         "Range must be non-empty and at most " + MAX_RANGE_BUCKETS + " buckets");
+      return;
     }
-    datastore.put(currentDay);
+
+    Gson gson = JsonServices.getGson();
+    response.setContentType("application/json;");
+    gson.toJson(visitRepository.getRange(from, to, granularity), response.getWriter());
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,48 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import com.google.sps.data.TranslationWorker;
+import com.google.sps.data.Translators;
+
+/**
+ * Push task handler that translates one new comment into one language. A failure answers
+ * 500, so the 'translate' queue retries the task with backoff.
+ */
+@WebServlet(TranslationWorker.TASK_URL)
+public class TranslateTaskServlet extends HttpServlet {
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    /* App Engine strips this header from outside requests, so only the queue can call this */
+    if (request.getHeader("X-AppEngine-QueueName") == null) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+    String text = request.getParameter("text");
+    String languageCode = request.getParameter("lang");
+    if ((text == null) || (languageCode == null)) {
+      /* Retrying a malformed task cannot help, so it is acknowledged and dropped */
+      System.err.println("Dropping translation task without text or language");
+      return;
+    }
+    Translators.getWorker().translate(text, languageCode, request.getParameter("source"));
+  }
+}
@@ -0,0 +1,46 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import com.google.gson.Gson;
+import com.google.sps.data.JsonServices;
+import com.google.sps.data.TranslationCache;
+import com.google.sps.data.Translators;
+
+/** Servlet that reports translation cache counters, used to size the cache. */
+@WebServlet("/translation-cache-stats")
+public class TranslationCacheStatsServlet extends HttpServlet {
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    TranslationCache cache = Translators.getCache();
+    LinkedHashMap<String, Long> stats = new LinkedHashMap<String, Long>();
+    stats.put("memoryHits", cache.getMemoryHits());
+    stats.put("datastoreHits", cache.getDatastoreHits());
+    stats.put("misses", cache.getMisses());
+    stats.put("evictions", cache.getEvictions());
+    stats.put("memorySize", (long) cache.getMemorySize());
+
+    Gson gson = JsonServices.getGson();
+    response.setContentType("application/json;");
+    gson.toJson(stats, response.getWriter());
+  }
+}
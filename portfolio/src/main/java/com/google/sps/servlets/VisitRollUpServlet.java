@@ -0,0 +1,41 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import com.google.sps.data.VisitAggregator;
+import com.google.sps.data.VisitServices;
+
+/**
+ * Cron handler that rolls the visit time series up into hours and days, on instances that
+ * cannot do it on a background thread. A failure answers 500; the next run catches up.
+ */
+@WebServlet(VisitAggregator.ROLL_UP_URL)
+public class VisitRollUpServlet extends HttpServlet {
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    /* App Engine strips this header from outside requests, so only cron can call this */
+    if (request.getHeader("X-Appengine-Cron") == null) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+    VisitServices.getAggregator().rollUp();
+  }
+}
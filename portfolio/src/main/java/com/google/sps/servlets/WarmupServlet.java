@@ -0,0 +1,67 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import com.google.gson.Gson;
+import com.google.sps.data.CommentPageCache;
+import com.google.sps.data.CommentServices;
+import com.google.sps.data.JsonServices;
+import com.google.sps.data.StartupMetrics;
+import com.google.sps.data.VisitServices;
+
+/**
+ * Handles App Engine warmup requests, sent before an instance takes traffic. Loads the
+ * first page of comments, as the comment section first asks for it, into the page cache
+ * and reads the weekday histogram, so the first visitors are served from memory.
+ */
+@WebServlet("/_ah/warmup")
+public class WarmupServlet extends HttpServlet {
+
+  /* Language script.js requests the first page in before a language is picked */
+  private static final String DEFAULT_LANGUAGE = "el";
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    long startMillis = System.currentTimeMillis();
+    try {
+      CommentPageCache pageCache = CommentServices.getPageCache();
+      long pageVersion = pageCache.currentVersion();
+      pageCache.put(DEFAULT_LANGUAGE, DataServlet.DEFAULT_PAGE_SIZE,
+                    CommentPageCache.FIRST_PAGE_CURSOR, pageVersion,
+                    CommentServices.getPageLoader().loadPage(DEFAULT_LANGUAGE,
+                                                             DataServlet.DEFAULT_PAGE_SIZE,
+                                                             CommentPageCache.FIRST_PAGE_CURSOR));
+      VisitServices.getHistogram().get();
+    } catch (RuntimeException e) {
+      /* The instance can still serve, it just starts with cold caches */
+      System.err.println("Warmup failed: " + e);
+    }
+    long warmupMillis = System.currentTimeMillis() - startMillis;
+    StartupMetrics.recordWarmup(warmupMillis);
+
+    LinkedHashMap<String, Object> stats = new LinkedHashMap<String, Object>();
+    stats.put("initializationMillis", StartupMetrics.getInitializationMillis());
+    stats.put("warmupMillis", warmupMillis);
+    Gson gson = JsonServices.getGson();
+    response.setContentType("application/json;");
+    gson.toJson(stats, response.getWriter());
+  }
+}
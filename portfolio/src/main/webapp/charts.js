@@ -14,6 +14,7 @@
  
 google.charts.load('current', {packages: ['corechart', 'bar']});
 google.charts.setOnLoadCallback(drawChart);
+google.charts.setOnLoadCallback(drawRecentChart);
  
 /**
  * Creates a chart and adds it to the page.
@@ -25,9 +26,11 @@ async function drawChart() {
   const data = new google.visualization.DataTable();
   data.addColumn('string', 'Weekday');
   data.addColumn('number', 'Visits');
+  data.addColumn('number', 'Unique visitors');
  
   for (let i = 0; i < visitArray.length; i++) {
-    data.addRow([visitArray[i].dayName.toString(), visitArray[i].visitCount]);
+    data.addRow([visitArray[i].dayName.toString(), visitArray[i].visitCount,
+                 visitArray[i].uniqueVisitors]);
   }
  
   const options = {
@@ -40,4 +43,32 @@ async function drawChart() {
       document.getElementById('chart-container'));
   chart.draw(data, options);
 }
- 
\ No newline at end of file
+
+/**
+ * Creates a chart of hourly visits over the last day and adds it to the page.
+ */
+async function drawRecentChart() {
+  const hourMillis = 60 * 60 * 1000;
+  const to = Math.ceil(Date.now() / hourMillis) * hourMillis;
+  const from = to - 24 * hourMillis;
+  const response = await fetch(`/visits?from=${from}&to=${to}&granularity=hour`);
+  const buckets = await response.json();
+
+  const data = new google.visualization.DataTable();
+  data.addColumn('datetime', 'Hour');
+  data.addColumn('number', 'Visits');
+
+  for (let i = 0; i < buckets.length; i++) {
+    data.addRow([new Date(buckets[i].startMillis), buckets[i].visits]);
+  }
+
+  const options = {
+    title: "Visits in the last 24 hours",
+    width: 1000,
+    height: 500,
+  };
+
+  const chart = new google.charts.Bar(
+      document.getElementById('recent-chart-container'));
+  chart.draw(data, options);
+}
@@ -122,6 +122,33 @@ class Comments {
     /* Creating delete button */
     this.deleteButton.textContent = "delete all"
     this.buttonContainer.appendChild(this.deleteButton);
+
+    this.commentStream = null;
+  }
+
+  /**
+    * Starts showing new comments as they are posted, if the server pushes them over a
+    * stream. Otherwise new comments show up on the next page load, without any polling
+    */
+  followNewComments(streamUrl) {
+    if (this.commentStream || !streamUrl || !window.EventSource) {
+      return;
+    }
+    this.commentStream = new EventSource(streamUrl);
+    this.commentStream.addEventListener('comment', (event) => this.handleNewComment(JSON.parse(event.data)));
+  }
+
+  /**
+    * Adds a newly posted comment to the top of the newest page
+    */
+  handleNewComment(message) {
+    if (this.messageArray.length === 0) {
+      return;
+    }
+    const listElement = document.createElement('p');
+    listElement.setAttribute("class", "comment");
+    listElement.textContent = `${message.username}: ${message.text}`;
+    this.messageArray[0].insertBefore(listElement, this.messageArray[0].firstChild);
   }
 
   /**
@@ -167,6 +194,9 @@ class Comments {
     const response = await fetch(`/data?scrs=${this.queryCursors[this.indexLimit]}&lan=${this.currentLanguage}`);
     const messages = await response.json();
     const cursor = await response.headers.get("Cursor");
+    if (this.indexLimit === 0) {
+      this.followNewComments(response.headers.get('Comment-Stream'));
+    }
 
     if (messages.length !== 0) {
       this.queryCursors[this.indexLimit + 1] = cursor;
@@ -202,6 +232,13 @@ class Comments {
     */
   async deleteMessages() {
     const dataDelete = await fetch('/delete-data');
+    let purgeStatus = await dataDelete.json();
+    /* Comments are deleted in the background, waits until the purge is finished */
+    while (purgeStatus.state === 'running') {
+      await new Promise((resolve) => setTimeout(resolve, 500));
+      const statusResponse = await fetch('/delete-data/status');
+      purgeStatus = await statusResponse.json();
+    }
     this.render();
   }
 }
@@ -0,0 +1,252 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.sps.data.CommentServices;
+import com.google.sps.data.RepositoryPage;
+import com.google.sps.data.StoredMessage;
+import com.google.sps.data.VisitServices;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs the servlets from many threads at once against the embedded backends, as App Engine
+ * does in threadsafe mode, and checks that no comment or visit is lost or duplicated.
+ */
+public class ConcurrentRequestsTest {
+
+  private static final int THREADS = 16;
+  private static final int REQUESTS_PER_THREAD = 50;
+  private static final long TIMEOUT_SECONDS = 60;
+
+  @BeforeClass
+  public static void useEmbeddedBackends() {
+    System.setProperty("sps.storage", "embedded");
+    /* Every visit must reach the store, so none may be dropped for lack of room */
+    System.setProperty("sps.visits.maxUnflushed", Long.toString(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void commentsPostedConcurrentlyAreAllStoredOnce() throws Exception {
+    DataServlet servlet = new DataServlet();
+    servlet.init();
+
+    List<Callable<Void>> clients = new ArrayList<Callable<Void>>();
+    for (int thread = 0; thread < THREADS; thread++) {
+      String username = "client" + thread;
+      clients.add(() -> {
+        for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+          FakeResponse post = new FakeResponse();
+          Map<String, String> form = new HashMap<String, String>();
+          form.put("username", username);
+          form.put("text-input", username + " comment " + i);
+          servlet.doPost(request(form, post), post.proxy());
+          assertEquals(HttpServletResponse.SC_FOUND, post.status);
+
+          /* Reads race the writes, and must always see a well-formed page */
+          FakeResponse get = new FakeResponse();
+          Map<String, String> query = new HashMap<String, String>();
+          query.put("lan", (i % 2 == 0) ? "en" : "es");
+          servlet.doGet(request(query, get), get.proxy());
+          assertTrue("GET did not complete", get.await());
+          if (get.status != HttpServletResponse.SC_NOT_MODIFIED) {
+            assertEquals(HttpServletResponse.SC_OK, get.status);
+            assertTrue(JsonParser.parseString(get.body()).isJsonArray());
+          }
+        }
+        return null;
+      });
+    }
+    runAll(clients);
+
+    Set<Long> ids = new HashSet<Long>();
+    Set<String> texts = new HashSet<String>();
+    String cursor = null;
+    RepositoryPage<StoredMessage> page;
+    do {
+      page = CommentServices.getMessages().getPage(500, cursor);
+      for (StoredMessage message : page.getItems()) {
+        assertTrue("Duplicate id " + message.getId(), ids.add(message.getId()));
+        texts.add(message.getText());
+      }
+      cursor = page.getEndCursor();
+    } while (page.getItems().size() == 500);
+    assertEquals(THREADS * REQUESTS_PER_THREAD, ids.size());
+    assertEquals(THREADS * REQUESTS_PER_THREAD, texts.size());
+  }
+
+  @Test
+  public void visitsRecordedConcurrentlyAreAllCounted() throws Exception {
+    SiteVisits servlet = new SiteVisits();
+    servlet.init();
+
+    List<Callable<Void>> clients = new ArrayList<Callable<Void>>();
+    for (int thread = 0; thread < THREADS; thread++) {
+      clients.add(() -> {
+        for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+          FakeResponse post = new FakeResponse();
+          servlet.doPost(request(new HashMap<String, String>(), post), post.proxy());
+          FakeResponse get = new FakeResponse();
+          servlet.doGet(request(new HashMap<String, String>(), get), get.proxy());
+          assertEquals(HttpServletResponse.SC_OK, get.status);
+        }
+        return null;
+      });
+    }
+    runAll(clients);
+
+    VisitServices.getAggregator().flush();
+    VisitServices.getHistogram().expire();
+    assertEquals(0, VisitServices.getAggregator().getDroppedVisits());
+    FakeResponse get = new FakeResponse();
+    servlet.doGet(request(new HashMap<String, String>(), get), get.proxy());
+    long visits = 0;
+    for (JsonElement day : JsonParser.parseString(get.body()).getAsJsonArray()) {
+      visits += day.getAsJsonObject().get("visitCount").getAsLong();
+    }
+    assertEquals(THREADS * REQUESTS_PER_THREAD, visits);
+  }
+
+  /* Starts every client at once and rethrows the first failure */
+  private static void runAll(List<Callable<Void>> clients) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(clients.size());
+    CountDownLatch start = new CountDownLatch(1);
+    try {
+      List<Future<Void>> results = new ArrayList<Future<Void>>();
+      for (Callable<Void> client : clients) {
+        results.add(executor.submit(() -> {
+          start.await();
+          return client.call();
+        }));
+      }
+      start.countDown();
+      for (Future<Void> result : results) {
+        result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /* A request with the given parameters, whose async context completes response */
+  private static HttpServletRequest request(Map<String, String> parameters,
+                                            FakeResponse response) {
+    return (HttpServletRequest) Proxy.newProxyInstance(
+        HttpServletRequest.class.getClassLoader(), new Class<?>[] {HttpServletRequest.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getParameter":
+              return parameters.get(args[0]);
+            case "getRemoteAddr":
+              return "127.0.0.1";
+            case "startAsync":
+              response.async = true;
+              return Proxy.newProxyInstance(
+                  AsyncContext.class.getClassLoader(), new Class<?>[] {AsyncContext.class},
+                  (asyncProxy, asyncMethod, asyncArgs) -> {
+                    if (asyncMethod.getName().equals("complete")) {
+                      response.completed.countDown();
+                    }
+                    return null;
+                  });
+            default:
+              return null;
+          }
+        });
+  }
+
+  /** Records what a servlet sends back. */
+  private static final class FakeResponse {
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private final CountDownLatch completed = new CountDownLatch(1);
+    private volatile boolean async;
+    private volatile int status = HttpServletResponse.SC_OK;
+
+    private HttpServletResponse proxy() {
+      ServletOutputStream out = new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+          synchronized (body) {
+            body.write(b);
+          }
+        }
+
+        @Override
+        public boolean isReady() {
+          return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {}
+      };
+      return (HttpServletResponse) Proxy.newProxyInstance(
+          HttpServletResponse.class.getClassLoader(),
+          new Class<?>[] {HttpServletResponse.class},
+          (proxy, method, args) -> {
+            switch (method.getName()) {
+              case "getOutputStream":
+                return out;
+              case "setStatus":
+              case "sendError":
+                status = (Integer) args[0];
+                return null;
+              case "sendRedirect":
+                status = HttpServletResponse.SC_FOUND;
+                return null;
+              case "isCommitted":
+                return false;
+              default:
+                return null;
+            }
+          });
+    }
+
+    /* Waits for an async response to complete */
+    private boolean await() throws InterruptedException {
+      return !async || completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private String body() {
+      synchronized (body) {
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+      }
+    }
+  }
+}